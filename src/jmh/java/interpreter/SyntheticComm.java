@@ -0,0 +1,144 @@
+package interpreter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Writes made-up CoMM programs that look like the machine-generated ones: lots of CoMM blocks,
+ * thousands of var and add statements, long comments and long url strings. The same arguments
+ * always give the same program, so benchmark runs can be compared with each other.
+ *
+ * Ex:
+ * java -cp ... interpreter.SyntheticComm 20 2500 > big.comm   // 20 CoMMs with 2,500 clips each
+ */
+class SyntheticComm {
+    private static final String[] HOSTS = {"https://youtu.be/", "https://www.youtube.com/watch?v=",
+            "https://vimeo.com/", "https://www.dailymotion.com/video/"};
+
+    private final int comms;
+    private final int clipsPerComm;
+    private final int sources;
+    private final int commentLength;
+    private final int urlLength;
+
+    /**
+     * @param comms         the number of CoMM definitions.
+     * @param clipsPerComm  the number of add statements in each CoMM.
+     * @param sources       the number of distinct source urls the clips are taken from.
+     * @param commentLength the length of the comment before every few statements.
+     * @param urlLength     the length of each url's video id.
+     */
+    SyntheticComm(int comms, int clipsPerComm, int sources, int commentLength, int urlLength) {
+        this.comms = comms;
+        this.clipsPerComm = clipsPerComm;
+        this.sources = sources;
+        this.commentLength = commentLength;
+        this.urlLength = urlLength;
+    }
+
+    /**
+     * Writes the program.
+     */
+    void write(Writer out) throws IOException {
+        Random random = new Random(comms * 31L + clipsPerComm);
+        String[] urls = new String[sources];
+        for (int i = 0; i < sources; i++) {
+            urls[i] = HOSTS[i % HOSTS.length] + randomId(random, urlLength) + i;
+        }
+
+        for (int comm = 0; comm < comms; comm++) {
+            out.write("// " + filler(random, commentLength) + "\n");
+            out.write("CoMM reel_" + comm + ((comm % 3 == 0) ? " cache(shared_" + (comm % 5) + ")" : "") + ";\n");
+            if (comm % 4 == 1) {
+                out.write("config.parallelDownloads(" + (1 + comm % 8) + ");\n");
+            }
+            if (comm % 4 == 2) {
+                out.write("config.fastSlicing(true);\n");
+            }
+            for (int clip = 0; clip < clipsPerComm; clip++) {
+                if (clip % 8 == 0) {
+                    out.write("// " + filler(random, commentLength) + "\n");
+                }
+                String url = urls[random.nextInt(sources)];
+                int start = random.nextInt(3600);
+                int stop = start + 1 + random.nextInt(120);
+                switch (clip % 5) {
+                    case 0:
+                        // A var for the url, used right away
+                        out.write("var clip_" + clip + " = \"" + url + "\";\n");
+                        out.write("add(clip_" + clip + ", \"" + time(start) + "\", \"" + time(stop) + "\");\n");
+                        break;
+                    case 1:
+                        // Vars for the times
+                        out.write("var start_" + clip + " = \"" + time(start) + "\";\n");
+                        out.write("add(\"" + url + "\", start_" + clip + ", \"" + time(stop) + "\");\n");
+                        break;
+                    case 2:
+                        // A whole video, spread over a few lines
+                        out.write("add(\n    \"" + url + "\"\n);\n");
+                        break;
+                    default:
+                        out.write("add(\"" + url + "\", \"" + time(start) + "\", \"" + time(stop) + "\");\n");
+                }
+            }
+            out.write("\n");
+        }
+    }
+
+    /**
+     * Returns the program as a string.
+     */
+    String generate() {
+        StringWriter out = new StringWriter();
+        try {
+            write(out);
+        } catch (IOException exception) {
+            // A StringWriter never throws
+            throw new UncheckedIOException(exception);
+        }
+        return out.toString();
+    }
+
+    // Returns the time as `minutes:seconds`.
+    private static String time(int seconds) {
+        return (seconds / 60) + ":" + String.format("%02d", seconds % 60);
+    }
+
+    private static String randomId(Random random, int length) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789_-";
+        StringBuilder id = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            id.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return id.toString();
+    }
+
+    private static String filler(Random random, int length) {
+        String[] words = {"highlights", "from", "the", "season", "opener", "with", "every", "goal", "and", "save"};
+        StringBuilder text = new StringBuilder(length + 12);
+        while (text.length() < length) {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return text.toString().trim();
+    }
+
+    /**
+     * Writes a program to stdout.
+     *     Usage: SyntheticComm <comms> <clips per comm> [sources] [comment length] [url length]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("USAGE: SyntheticComm <comms> <clips per comm> [sources] [comment length] [url length]");
+            System.exit(1);
+        }
+        int comms = Integer.parseInt(args[0]);
+        int clips = Integer.parseInt(args[1]);
+        int sources = (args.length > 2) ? Integer.parseInt(args[2]) : Math.max(1, clips / 10);
+        int commentLength = (args.length > 3) ? Integer.parseInt(args[3]) : 120;
+        int urlLength = (args.length > 4) ? Integer.parseInt(args[4]) : 11;
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        new SyntheticComm(comms, clips, sources, commentLength, urlLength).write(out);
+        out.flush();
+    }
+}
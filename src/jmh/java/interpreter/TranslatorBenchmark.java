@@ -0,0 +1,135 @@
+package interpreter;
+
+import comm_grammar.comm_grammarLexer;
+import comm_grammar.comm_grammarParser;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each stage of turning a CoMM program into plans (and a bash script) on synthetic
+ * programs of different sizes. Run it with tools/bench.sh, which also reports the allocation rate
+ * of each stage with JMH's gc profiler.
+ *
+ *     lex        the lexer on its own
+ *     parse      lexing and parsing into a parse tree, with SLL prediction
+ *     walk       the CodeGenerator walking a parse tree that's already been built
+ *     translate  everything Comm does before running the plans (streaming the program through
+ *                an SLL parse with the generator listening, and pruning the tree as it goes)
+ *     export     writing the bash script for plans that have already been made, to a writer
+ *                that throws it away
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class TranslatorBenchmark {
+    /**
+     * The number of CoMM definitions in the program.
+     */
+    @Param({"1", "20"})
+    public int comms;
+
+    /**
+     * The number of add statements in each CoMM.
+     */
+    @Param({"1000", "10000"})
+    public int clipsPerComm;
+
+    private String program;
+    private byte[] programBytes;
+    private ParseTree tree;
+    private List<CommPlan> plans;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        program = new SyntheticComm(comms, clipsPerComm, Math.max(1, clipsPerComm / 10), 120, 11).generate();
+        programBytes = program.getBytes(StandardCharsets.UTF_8);
+        tree = parser(program).program();
+        plans = walk(tree).getPlans();
+    }
+
+    @Benchmark
+    public int lex() {
+        comm_grammarLexer lexer = new comm_grammarLexer(new ANTLRInputStream(program));
+        int tokens = 0;
+        while (lexer.nextToken().getType() != Token.EOF) {
+            tokens++;
+        }
+        return tokens;
+    }
+
+    @Benchmark
+    public ParseTree parse() {
+        return parser(program).program();
+    }
+
+    @Benchmark
+    public CodeGenerator walk() {
+        return walk(tree);
+    }
+
+    @Benchmark
+    public CodeGenerator translate() throws IOException {
+        CodeGenerator generator = new CodeGenerator();
+        generator.printDefinitions = false;
+        return Comm.translate(() -> new ByteArrayInputStream(programBytes), generator);
+    }
+
+    @Benchmark
+    public long export() throws IOException {
+        CountingWriter out = new CountingWriter();
+        new BashScriptWriter().write(plans, out);
+        return out.count;
+    }
+
+    private static comm_grammarParser parser(String program) {
+        comm_grammarLexer lexer = new comm_grammarLexer(new ANTLRInputStream(program));
+        comm_grammarParser parser = new comm_grammarParser(new CommonTokenStream(lexer));
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        return parser;
+    }
+
+    // Counts the characters written to it and throws them away.
+    private static class CountingWriter extends Writer {
+        long count = 0;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            count += length;
+        }
+
+        @Override
+        public void write(String text) {
+            count += text.length();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static CodeGenerator walk(ParseTree tree) {
+        CodeGenerator generator = new CodeGenerator();
+        generator.printDefinitions = false;
+        new ParseTreeWalker().walk(generator, tree);
+        return generator;
+    }
+}
@@ -25,16 +25,18 @@ vname  : VNAME ;
 str_lit: STR_LIT ;
 bool_lt: 'true' | 'false' ;
 
-add_all: 'add' '(' (vname | str_lit)       ')' ;
-add_rng: 'add' '(' (v1=vname | s1=str_lit) ','
-                   (v2=vname | s2=str_lit) ','
-                   (v3=vname | s3=str_lit) ')' ;
+// A whole video, or a range of it if the start and stop times are given. Both forms are one rule
+// so the parser can choose between statements by their first token alone.
+add_clp: 'add' '(' (v1=vname | s1=str_lit)
+                   (',' (v2=vname | s2=str_lit)
+                    ',' (v3=vname | s3=str_lit))? ')' ;
 
 assign : 'var ' VNAME '=' param ;
 
-req_vc : 'requestVideoCredentials' '(' ((vname | str_lit) ',')* (vname | str_lit) ')' ;
+req_vc : 'requestVideoCredentials' '(' (vname | str_lit) (',' (vname | str_lit))* ')' ;
 
-config : 'config' '.' (scale | scl_bh | scl_bw | pvt_ups | no_cach) ;
+config : 'config' '.' (scale | scl_bh | scl_bw | pvt_ups | no_cach | dl_jobs | sl_jobs | pipelin | fst_slc | sgl_pas
+                     | spl_ovl | nrm_src) ;
 
 // config options
 scale  : 'scale'            '(' (vname | int_lit) ','
@@ -44,16 +46,23 @@ scl_bh : 'scaleByHeight'    '(' (vname | int_lit) ')' ;
 scl_bw : 'scaleByWidth'     '(' (vname | int_lit) ')' ;
 pvt_ups: 'preventUpscaling' '(' (vname | bool_lt) ')' ;
 no_cach: 'noCache'          '('                   ')' ;
+dl_jobs: 'parallelDownloads' '(' (vname | int_lit) ')' ;
+sl_jobs: 'parallelSlices'   '(' (vname | int_lit) ')' ;
+pipelin: 'pipeline'         '(' (vname | bool_lt) ')' ;
+fst_slc: 'fastSlicing'      '(' (vname | bool_lt) ')' ;
+sgl_pas: 'singlePass'       '(' (vname | bool_lt) ')' ;
+spl_ovl: 'splitOverlaps'    '(' (vname | bool_lt) ')' ;
+nrm_src: 'normalize'        '(' (vname | bool_lt) ')' ;
 
 comstmt: 'CoMM ' VNAME cache? ';' ;
 cache  : ' cache' '(' VNAME ')' ;
-stmnt  : (add_all | add_rng | assign | req_vc | config) ';' ;
+stmnt  : (add_clp | assign | req_vc | config) ';' ;
 
 // ######################################################## LEXER RULES
 
 WS_SKIP: WS                -> skip ;
-COMMENT: '//' .*? [\r\n]   -> skip ;
+COMMENT: '//' ~[\r\n]*     -> skip ;
 
 INT    : DIGIT+          ;
 VNAME  : (ALNUM | '_')+  ;
-STR_LIT: '"' .*? '"'     ;
+STR_LIT: '"' ~["]* '"'   ;
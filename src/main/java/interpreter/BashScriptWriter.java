@@ -0,0 +1,704 @@
+package interpreter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns CoMM plans into a bash script that does the same work as the TaskEngine, for running
+ * somewhere else or reading through. The script needs bash 4.3+, ffmpeg, youtube-dl, sha256sum and
+ * the "ts" command from moreutils.
+ */
+class BashScriptWriter {
+    // Puts a timestamp on every line piped into it. The "ts" command is from the "moreutils" package.
+    private static final String TIMESTAMP = "ts '[%Y-%m-%d %H:%M:%.S]'";
+
+    // Bash function used by config.fastSlicing(true) to cut a slice with an input-side seek, so ffmpeg
+    // jumps straight to the start time instead of decoding the video from the beginning. ffprobe
+    // reads the packets within a second of the start time (without decoding them) to look for a
+    // keyframe. If one is close enough, the slice starts there and the packets are copied as they
+    // are; otherwise the slice is re-encoded, which is still exact because the seek is done first.
+    //     Usage: comm_fast_slice <source> <start seconds> <duration seconds> <slice>
+    private static final String FAST_SLICE_HELPER = ""
+            + "COMM_KEYFRAME_TOLERANCE=${COMM_KEYFRAME_TOLERANCE:-0.5}\n\n"
+            + "comm_fast_slice() {\n"
+            + "    local keyframe\n"
+            + "    keyframe=$(ffprobe -v error -select_streams v:0 -show_entries packet=pts_time,flags -of csv=p=0 \\\n"
+            + "            -read_intervals \"$(( $2 > 0 ? $2 - 1 : 0 ))%$(( $2 + 1 ))\" \"$1\" 2>/dev/null \\\n"
+            + "        | awk -F, -v start=\"$2\" -v tolerance=\"$COMM_KEYFRAME_TOLERANCE\" '\n"
+            + "            $2 ~ /K/ {\n"
+            + "                off = $1 - start; if (off < 0) off = -off\n"
+            + "                if (off <= tolerance && (best == \"\" || off < bestOff)) { best = $1; bestOff = off }\n"
+            + "            }\n"
+            + "            END { print best }')\n"
+            + "    if [ -n \"$keyframe\" ]; then\n"
+            + "        echo \"Keyframe at $keyframe, copying the stream\"\n"
+            + "        ffmpeg -ss \"$keyframe\" -i \"$1\" -t \"$3\" -c copy -avoid_negative_ts make_zero -y \"$4\"\n"
+            + "    else\n"
+            + "        echo \"No keyframe near $2, re-encoding\"\n"
+            + "        ffmpeg -ss \"$2\" -i \"$1\" -t \"$3\" -y \"$4\"\n"
+            + "    fi\n"
+            + "}\n";
+
+    // Bash functions for the shared stores. comm_link links a stored file into a CoMM's cache; a hard
+    // link costs no extra disk space, and if the cache is on a different filesystem than the store, a
+    // symbolic link is used instead. Every link is recorded in the access log that CacheManager uses to
+    // find the least recently used files.
+    //     Usage: comm_link <stored file> <link>
+    //
+    // comm_fetch_source runs a download command only if the video isn't in the source store yet, and
+    // then links the stored video into the cache.
+    //     Usage: comm_fetch_source <stored video> <cached video> <download command...>
+    //
+    // comm_normalize_source is run after it for config.normalize(true). It runs a transcode command
+    // only if the store doesn't have a normalized copy that's at least as new as the video, and then
+    // links the normalized copy into the cache in place of the video. Like a cut, the transcode is
+    // written to a temporary file that's only moved into the store once it succeeds.
+    //     Usage: comm_normalize_source <stored video> <normalized video> <cached video> <command...> <output>
+    //
+    // comm_memo_slice runs a cut command only if the slice isn't in the slice store yet, and then links
+    // the stored slice into the cache. The last argument of the cut command is its output file; it's
+    // swapped for a temporary file that's only moved into the store once the cut succeeds, so a failed
+    // or interrupted cut never leaves a broken slice behind to be reused.
+    //     Usage: comm_memo_slice <stored slice> <slice> <cut command...> <output>
+    private static final String STORE_HELPERS = ""
+            + "comm_link() {\n"
+            + "    [ -e \"$1\" ] || { echo \"$1 doesn't exist\"; return 1; }\n"
+            + "    echo \"$(date +%s) $1\" >> '" + CacheManager.accessLog + "'\n"
+            + "    ln -f \"$1\" \"$2\" 2>/dev/null \\\n"
+            + "        || ln -sf \"$(cd \"$(dirname \"$1\")\" && pwd)/$(basename \"$1\")\" \"$2\"\n"
+            + "}\n\n"
+            + "comm_fetch_source() {\n"
+            + "    local stored=\"$1\" cached=\"$2\"\n"
+            + "    shift 2\n"
+            + "    comm_journal_check download \"$stored\"\n"
+            + "    if [ -s \"$stored\" ]; then\n"
+            + "        echo \"Already in the source store: $stored\"\n"
+            + "    else\n"
+            + "        \"$@\" || return\n"
+            + "        comm_journal download \"$stored\"\n"
+            + "    fi\n"
+            + "    comm_link \"$stored\" \"$cached\"\n"
+            + "}\n\n"
+            + "comm_normalize_source() {\n"
+            + "    local stored=\"$1\" normalized=\"$2\" cached=\"$3\" partial\n"
+            + "    shift 3\n"
+            + "    comm_journal_check normalize \"$normalized\"\n"
+            + "    if [ -s \"$normalized\" ] && ! [ \"$stored\" -nt \"$normalized\" ]; then\n"
+            + "        echo \"Already normalized: $normalized\"\n"
+            + "    else\n"
+            + "        partial=\"${normalized%.mkv}.partial$BASHPID.mkv\"\n"
+            + "        \"${@:1:$#-1}\" \"$partial\" && mv -f \"$partial\" \"$normalized\"\n"
+            + "        local status=$?\n"
+            + "        rm -f \"$partial\"\n"
+            + "        [ $status -eq 0 ] || return $status\n"
+            + "        comm_journal normalize \"$normalized\"\n"
+            + "    fi\n"
+            + "    comm_link \"$normalized\" \"$cached\"\n"
+            + "}\n\n"
+            + "comm_memo_slice() {\n"
+            + "    local stored=\"$1\" slice=\"$2\" partial\n"
+            + "    shift 2\n"
+            + "    comm_journal_check slice \"$stored\"\n"
+            + "    if [ -s \"$stored\" ]; then\n"
+            + "        echo \"Reusing the stored slice $stored\"\n"
+            + "    else\n"
+            + "        partial=\"${stored%.mkv}.partial$BASHPID.mkv\"\n"
+            + "        \"${@:1:$#-1}\" \"$partial\" && mv -f \"$partial\" \"$stored\"\n"
+            + "        local status=$?\n"
+            + "        rm -f \"$partial\"\n"
+            + "        [ $status -eq 0 ] || return $status\n"
+            + "        comm_journal slice \"$stored\"\n"
+            + "    fi\n"
+            + "    comm_link \"$stored\" \"$slice\"\n"
+            + "}\n\n";
+
+    // Bash functions for the step journal (see StepJournal), in the same format the TaskEngine uses.
+    // comm_journal_begin reads a CoMM's journal, and sets COMM_RESUMING to 1 if it's from an earlier
+    // run of the same plan that didn't finish. comm_journal_start starts a new journal unless the
+    // run is resuming.
+    //     Usage: comm_journal_begin <journal> <plan digest>
+    //            comm_journal_start
+    //
+    // comm_journal records a finished step with the size and digest of the file it made, and
+    // comm_journaled checks that a file still matches its step. comm_journal_check removes a file
+    // that's listed in the journal but doesn't match it, so it's made again.
+    //     Usage: comm_journal <step> <file> [<file to read, if it's somewhere else now>]
+    //            comm_journaled <step> <file>
+    //            comm_journal_check <step> <file>
+    private static final String JOURNAL_HELPERS = ""
+            + "comm_journal_begin() {\n"
+            + "    COMM_JOURNAL=\"$(pwd)/$1\" COMM_PLAN=\"plan $2\" COMM_RESUMING=0\n"
+            + "    if [ -f \"$COMM_JOURNAL\" ] && [ \"$(head -n 1 \"$COMM_JOURNAL\")\" = \"$COMM_PLAN\" ] \\\n"
+            + "            && ! grep -qx done \"$COMM_JOURNAL\"; then\n"
+            + "        COMM_RESUMING=1\n"
+            + "        echo \"Resuming the run in $1\" \\\n"
+            + "            \"($(( $(wc -l < \"$COMM_JOURNAL\") - 1 )) steps were already done)\"\n"
+            + "    fi\n"
+            + "}\n\n"
+            + "comm_journal_start() {\n"
+            + "    [ \"$COMM_RESUMING\" = 1 ] || echo \"$COMM_PLAN\" > \"$COMM_JOURNAL\"\n"
+            + "}\n\n"
+            + "comm_fingerprint() {\n"
+            + "    echo \"$(wc -c < \"$1\" | tr -d ' ') $(sha256sum < \"$1\" | cut -d ' ' -f 1)\"\n"
+            + "}\n\n"
+            + "comm_journal() {\n"
+            + "    echo \"$1 $2 $(comm_fingerprint \"${3:-$2}\")\" >> \"$COMM_JOURNAL\"\n"
+            + "}\n\n"
+            + "comm_journal_entry() {\n"
+            + "    awk -v step=\"$1\" -v file=\"$2\" '$1 == step && $2 == file' \"$COMM_JOURNAL\" 2>/dev/null \\\n"
+            + "        | tail -n 1\n"
+            + "}\n\n"
+            + "comm_journaled() {\n"
+            + "    local entry\n"
+            + "    entry=$(comm_journal_entry \"$1\" \"$2\")\n"
+            + "    [ -n \"$entry\" ] && [ -f \"$2\" ] && [ \"$entry\" = \"$1 $2 $(comm_fingerprint \"$2\")\" ]\n"
+            + "}\n\n"
+            + "comm_journal_check() {\n"
+            + "    [ -n \"$(comm_journal_entry \"$1\" \"$2\")\" ] || return 0\n"
+            + "    if comm_journaled \"$1\" \"$2\"; then\n"
+            + "        echo \"Checked $2 against the journal\"\n"
+            + "    else\n"
+            + "        echo \"$2 doesn't match the journal, so it's being made again\"\n"
+            + "        rm -f \"$2\"\n"
+            + "    fi\n"
+            + "}\n\n";
+
+    // Bash function that works out the frame of a scaled CoMM from the resolutions of its cached
+    // source videos, the same way FrameScale.frame() does, and prints it as "<width> <height>".
+    //     Usage: comm_frame_size <width> <height> <keep proportions> <constrain> <max height> <video...>
+    private static final String FRAME_SIZE_HELPER = ""
+            + "comm_frame_size() {\n"
+            + "    local width=$1 height=$2 keep=$3 constrain=$4 max=$5 video\n"
+            + "    shift 5\n"
+            + "    for video in \"$@\"; do\n"
+            + "        [ -e \"$video\" ] && ffprobe -v error -select_streams v:0 -show_entries stream=width,height \\\n"
+            + "            -of csv=p=0 \"$video\" 2>/dev/null | head -n 1\n"
+            + "    done | awk -F, -v w=\"$width\" -v h=\"$height\" -v keep=\"$keep\" -v constrain=\"$constrain\" \\\n"
+            + "            -v max=\"$max\" '\n"
+            + "        $1 > 0 && $2 > 0 { n++; sw[n] = $1; sh[n] = $2 }\n"
+            + "        END {\n"
+            + "            if (w == 0 || h == 0) {\n"
+            + "                for (i = 1; i <= n; i++) {\n"
+            + "                    r = (w == 0) ? sw[i] / sh[i] : sh[i] / sw[i]\n"
+            + "                    if (r > ratio) ratio = r\n"
+            + "                }\n"
+            + "                if (ratio == 0) ratio = (w == 0) ? 16 / 9 : 9 / 16\n"
+            + "                if (w == 0) w = h * ratio; else h = w * ratio\n"
+            + "            }\n"
+            + "            if (constrain) {\n"
+            + "                shrink = 1\n"
+            + "                for (i = 1; i <= n; i++) {\n"
+            + "                    a = sw[i] / w; b = sh[i] / h\n"
+            + "                    s = keep ? (a > b ? a : b) : (a < b ? a : b)\n"
+            + "                    if (s < shrink) shrink = s\n"
+            + "                }\n"
+            + "                w *= shrink; h *= shrink\n"
+            + "            }\n"
+            + "            if (max > 0 && h > max) { w *= max / h; h = max }\n"
+            + "            w = int(w); h = int(h); w -= w % 2; h -= h % 2\n"
+            + "            print (w < 2 ? 2 : w), (h < 2 ? 2 : h)\n"
+            + "        }'\n"
+            + "}\n\n";
+
+    // The shell variables that hold the frame size worked out by comm_frame_size
+    private static final String FRAME_WIDTH = "${COMM_FRAME_W}";
+    private static final String FRAME_HEIGHT = "${COMM_FRAME_H}";
+
+    // Bash functions written at the top of every script. A semaphore is a FIFO pre-loaded with one
+    // token per slot; a background job reads a token before it starts and writes it back when it's
+    // done, which caps the number of jobs running at once.
+    private static final String SCRIPT_HELPERS = "COMM_STATUS=0\n"
+            + "COMM_CORES=$(getconf _NPROCESSORS_ONLN 2>/dev/null || echo 1)\n\n"
+            + "comm_sem_init() {\n"
+            + "    local fifo i var=\"COMM_SEM_$1\"\n"
+            + "    if [ -n \"${!var}\" ]; then\n"
+            + "        eval \"exec ${!var}>&-\"\n"
+            + "    fi\n"
+            + "    fifo=$(mktemp -u)\n"
+            + "    mkfifo \"$fifo\"\n"
+            + "    eval \"exec {$var}<>\\\"\\$fifo\\\"\"\n"
+            + "    rm -f \"$fifo\"\n"
+            + "    for ((i = 0; i < $2; i++)); do\n"
+            + "        echo >&\"${!var}\"\n"
+            + "    done\n"
+            + "}\n\n"
+            + "comm_sem_acquire() {\n"
+            + "    local var=\"COMM_SEM_$1\"\n"
+            + "    read -r -u \"${!var}\"\n"
+            + "}\n\n"
+            + "comm_sem_release() {\n"
+            + "    local var=\"COMM_SEM_$1\"\n"
+            + "    echo >&\"${!var}\"\n"
+            + "}\n\n"
+            + JOURNAL_HELPERS
+            + STORE_HELPERS
+            + FRAME_SIZE_HELPER
+            + FAST_SLICE_HELPER;
+
+    /**
+     * Returns the whole script for the given plans, which run one after another.
+     */
+    String write(List<CommPlan> plans) {
+        StringWriter script = new StringWriter();
+        try {
+            write(plans, script);
+        } catch (IOException exception) {
+            // A StringWriter never throws
+            throw new UncheckedIOException(exception);
+        }
+        return script.toString();
+    }
+
+    /**
+     * Writes the whole script for the given plans to `out`, a piece at a time, so a script for
+     * tens of thousands of slices is never held in memory all at once.
+     */
+    void write(List<CommPlan> plans, Writer out) throws IOException {
+        out.write(header());
+        for (CommPlan plan : plans) {
+            writePlan(plan, out);
+        }
+        out.write(footer());
+    }
+
+    /**
+     * Returns the start of the script, up to the first CoMM.
+     */
+    String header() {
+        return "#!/usr/bin/env bash\n\n"
+                + "# Codable Media Mashup (CoMM) bash script\n\n"
+                + SCRIPT_HELPERS;
+    }
+
+    /**
+     * Returns the end of the script, after the last CoMM.
+     */
+    String footer() {
+        return "\nexit $COMM_STATUS\n";
+    }
+
+    /**
+     * Writes all the commands for one CoMM definition to `out`.
+     */
+    void writePlan(CommPlan plan, Writer out) throws IOException {
+        // TODO: Add other metadata here as necessary
+        out.write("\n\n############################################\n"
+                + "#   Filename: " + plan.location.filename + "\n"
+                + "#   Cache Folder: " + plan.location.cacheName + "\n"
+                + "\n##########     File Management    ##########\n");
+        writeFileManamentCommands(plan, out);
+        if (plan.singlePass) {
+            out.write("\n##########     Video Downloads    ##########\n");
+            writeDownloadCommands(plan, out);
+        } else if (plan.pipelined) {
+            out.write("\n##########  Downloads + Slicing  ##########\n");
+            writePipelinedCommands(plan, out);
+        } else {
+            out.write("\n##########     Video Downloads    ##########\n");
+            writeDownloadCommands(plan, out);
+            out.write("\n##########     Video Slicing      ##########\n");
+            writeSlicingCommands(plan, out);
+        }
+        out.write("\n##########     Video Joining      ##########\n");
+        writeJoiningCommands(plan, out);
+    }
+
+    // Returns the bash commands to echo back the command with a timestamp and then run it.
+    private static String loggedCommand(String command, boolean timed) {
+        String time = (timed) ? "time " : "";
+        String extraEcho = (timed) ? "echo\n" : "";
+        return "echo\necho \"" + command + "\" | " + TIMESTAMP + "\necho\n"
+                + time + command + "\n" + extraEcho;
+    }
+
+    // Returns the bash commands to run a timed command in a subshell once the named semaphore has a
+    // free slot. Everything the command prints goes to its own log file so parallel jobs don't garble
+    // each other's output, and `onFailure` is run if it exits with an error. The subshell exits with
+    // the command's status.
+    private static String semaphoreJob(String semaphore, String logFile, String command, String onFailure) {
+        return "(\n"
+                + "    comm_sem_acquire " + semaphore + "\n"
+                + "    {\n"
+                + "        echo \"" + command + "\" | " + TIMESTAMP + "\n"
+                + "        echo\n"
+                + "        time " + command + "\n"
+                + "    } > '" + logFile + "' 2>&1\n"
+                + "    status=$?\n"
+                + "    comm_sem_release " + semaphore + "\n"
+                + "    [ $status -eq 0 ] || " + onFailure + "\n"
+                + "    exit $status\n"
+                + ")";
+    }
+
+    // Same as semaphoreJob(), but runs in the background. A failing job never stops the other jobs.
+    private static String backgroundJob(String semaphore, String logFile, String command, String onFailure) {
+        return semaphoreJob(semaphore, logFile, command, onFailure) + " &\n";
+    }
+
+    // Indents every line of the given bash commands by four spaces. Blank lines are left alone.
+    private static String indent(String commands) {
+        StringBuilder indented = new StringBuilder(commands.length() + 64);
+        int lineStart = 0;
+        while (lineStart < commands.length()) {
+            int lineEnd = commands.indexOf('\n', lineStart);
+            lineEnd = (lineEnd < 0) ? commands.length() : lineEnd + 1;
+            if (commands.charAt(lineStart) != '\n') {
+                indented.append("    ");
+            }
+            indented.append(commands, lineStart, lineEnd);
+            lineStart = lineEnd;
+        }
+        return indented.toString();
+    }
+
+    // Writes all the file management commands for a CoMM (cleaning the cache directory and
+    // creating a new cache directory if needed). The journal is read first, since a run that's
+    // resuming keeps what it already made.
+    private static void writeFileManamentCommands(CommPlan plan, Writer out) throws IOException {
+        String cacheDir = plan.location.cacheDir();
+        String makeStore = loggedCommand("mkdir -p " + SourceStore.storeDir() + " " + SliceStore.storeDir()
+                + " 2>/dev/null", false);
+        out.write("comm_journal_begin " + Commands.quote(plan.journalFile()) + " " + plan.digest() + "\n");
+        if (plan.cachingDisabled) {
+            // If caching is disabled, we remove the directory and then create it again. The CoMM's videos
+            // and slices are also removed from the stores so they really do get downloaded and cut again,
+            // unless the run is resuming, since that was already done when it started. Each file gets its
+            // own command so a CoMM with thousands of slices doesn't go over the limit on the length of a
+            // command line.
+            out.write("if [ \"$COMM_RESUMING\" = 1 ]; then\n"
+                    + "    echo \"Keeping " + cacheDir + " and its stored videos and slices, since the run"
+                    + " is resuming\"\n"
+                    + "else\n");
+            out.write(indent(loggedCommand("rm -rf " + cacheDir, false)));
+            for (String url : plan.downloadUrls) {
+                out.write("    rm -f '" + SourceStore.sourceFile(url) + "'\n");
+                if (plan.normalize) {
+                    out.write("    rm -f '" + SourceStore.normalizedFile(url) + "'\n");
+                }
+            }
+            for (Slice slice : plan.slices) {
+                if (!slice.isWholeVideo()) {
+                    out.write("    rm -f '" + plan.storedSlice(slice) + "'\n");
+                }
+            }
+            out.write("fi\n");
+            out.write(loggedCommand("mkdir -p " + cacheDir + " 2>/dev/null", false));
+            out.write(makeStore);
+        } else {
+            // If caching isn't disabled, we just remove the slice and slice list files. The downloaded
+            // source video files will still remain in the cache, and the slices are only links into the
+            // slice store. find deletes them itself, since a glob of every slice and its log would go over
+            // the limit on the length of a command line for a big CoMM. We use "2>/dev/null" to redirect
+            // errors to the abyss, because if the directory already exists, mkdir will give an error (and
+            // if it doesn't, find will).
+            out.write(loggedCommand("find " + cacheDir
+                    + " -maxdepth 1 \\( -name 'slice*' -o -name '*_slice_list.txt' \\) -delete 2>/dev/null", false));
+            out.write(loggedCommand("mkdir -p " + cacheDir + " 2>/dev/null", false));
+            out.write(makeStore);
+        }
+        out.write("comm_journal_start\n");
+    }
+
+    // Returns the command that makes sure a url is in the source store and linked into the cache,
+    // normalizing it first if the plan normalizes its sources.
+    private static String downloadCommand(CommPlan plan, String url) {
+        String fetch = "comm_fetch_source " + Commands.quote(SourceStore.sourceFile(url)) + " "
+                + Commands.quote(plan.cachedSource(url)) + " " + Commands.toShell(Commands.download(url));
+        if (!plan.normalize) {
+            return fetch;
+        }
+        return fetch + " && comm_normalize_source " + Commands.quote(SourceStore.sourceFile(url)) + " "
+                + Commands.quote(SourceStore.normalizedFile(url)) + " " + Commands.quote(plan.cachedSource(url)) + " "
+                + Commands.toShell(Commands.normalize(SourceStore.sourceFile(url), SourceStore.normalizedFile(url)));
+    }
+
+    // Writes the bash commands that download all the urls for a CoMM. With a single download job
+    // they run one after another. Otherwise they run in the background, and the script waits for
+    // all of them to finish before slicing starts. Each failed url is written to failed_downloads.txt
+    // in the cache so the rest of the run can carry on without it.
+    private static void writeDownloadCommands(CommPlan plan, Writer out) throws IOException {
+        if (plan.downloadJobs <= 1) {
+            for (String url : plan.downloadUrls) {
+                out.write(loggedCommand(downloadCommand(plan, url), true));
+            }
+            return;
+        }
+
+        String failureList = plan.location.cacheDir() + "/failed_downloads.txt";
+        out.write("comm_sem_init download " + plan.downloadJobs + "\n");
+        out.write("rm -f '" + failureList + "'\n");
+        for (String url : plan.downloadUrls) {
+            out.write(backgroundJob("download", plan.downloadLog(url), downloadCommand(plan, url),
+                    "echo " + Commands.quote(url) + " >> '" + failureList + "'"));
+        }
+
+        // Nothing gets sliced until every download has either finished or failed
+        out.write("wait\n");
+        for (String url : plan.downloadUrls) {
+            writeLogCopy(plan.downloadLog(url), out);
+        }
+        out.write(reportFailures(failureList, "downloads"));
+    }
+
+    // Writes the bash command that copies a background job's log into the main log. Jobs that never
+    // ran (like the slices of a failed download) don't have a log. The copies are written after the
+    // `wait` for all the jobs, so the logs end up in order.
+    private static void writeLogCopy(String log, Writer out) throws IOException {
+        out.write("cat '" + log + "' 2>/dev/null\n");
+    }
+
+    // Returns the bash commands that print anything listed in `failureList` and mark the run as failed.
+    private static String reportFailures(String failureList, String description) {
+        return "if [ -s '" + failureList + "' ]; then\n"
+                + "    echo \"[!] These " + description + " failed:\"\n"
+                + "    cat '" + failureList + "'\n"
+                + "    COMM_STATUS=1\n"
+                + "fi\n";
+    }
+
+    // Returns the command that links a repeated clip to the stored slice of the first clip it repeats.
+    private static String repeatCommand(CommPlan plan, Slice slice) {
+        return "comm_link " + Commands.quote(plan.storedSlice(slice)) + " " + Commands.quote(plan.sliceFile(slice));
+    }
+
+    // Writes the bash commands that link the repeated clips among `slices` once the clips they
+    // repeat have been cut. A repeat of a clip that failed fails too.
+    private static void writeRepeatLinks(CommPlan plan, List<Slice> slices, Map<Slice, Slice> repeats,
+                                         String failureList, Writer out) throws IOException {
+        for (Slice slice : slices) {
+            if (repeats.containsKey(slice)) {
+                out.write(repeatCommand(plan, slice) + " > '" + plan.sliceLog(slice) + "' 2>&1 || echo '"
+                        + slice.filename() + "' >> '" + failureList + "'\n");
+            }
+        }
+    }
+
+    // Returns the command that makes the slice file from its cached source video.
+    private static String sliceCommand(CommPlan plan, Slice slice) {
+        String targetFile = plan.cachedSource(slice);
+        String sliceFile = plan.sliceFile(slice);
+        if (slice.isWholeVideo()) {
+            // When we add an entire video file, there's no need to slice, so we're just going to
+            // link the stored video in as a placeholder for this "slice". No video data gets copied.
+            return "comm_link " + Commands.quote(plan.storedSource(slice.url)) + " " + Commands.quote(sliceFile);
+        }
+        // The slice is only cut if the slice store doesn't already have it
+        String memo = "comm_memo_slice " + Commands.quote(plan.storedSlice(slice)) + " "
+                + Commands.quote(sliceFile) + " ";
+        if (plan.normalize) {
+            // A normalized source has a keyframe at every whole second, so every slice is a copy
+            return memo + Commands.toShell(Commands.copySlice(targetFile, String.valueOf(slice.start), slice,
+                    sliceFile));
+        }
+        if (plan.fastSlicing) {
+            return memo + "comm_fast_slice " + Commands.quote(targetFile) + " " + slice.start + " "
+                    + slice.duration + " " + Commands.quote(sliceFile);
+        }
+        // Use ffmpeg to extract the slice from the target file
+        return memo + Commands.toShell(Commands.preciseSlice(targetFile, slice, sliceFile));
+    }
+
+    // Writes the bash commands that cut all the slices for a CoMM. With a single slice job they run
+    // one after another; otherwise they run in the background, one per core unless the plan says
+    // otherwise. The slice numbers are handed out while the CoMM is read, so the order of the final
+    // video doesn't depend on which slice finishes first.
+    private static void writeSlicingCommands(CommPlan plan, Writer out) throws IOException {
+        Map<Slice, Slice> repeats = plan.repeatedClips();
+        if (plan.sliceJobs == 1) {
+            // A repeated clip always comes after the first one, so it's already been cut
+            for (Slice slice : plan.slices) {
+                out.write(repeats.containsKey(slice) ? loggedCommand(repeatCommand(plan, slice), false)
+                        : loggedCommand(sliceCommand(plan, slice), !slice.isWholeVideo()));
+            }
+            return;
+        }
+
+        String failureList = plan.location.cacheDir() + "/failed_slices.txt";
+        out.write("comm_sem_init slice " + sliceJobLimit(plan) + "\n");
+        out.write("rm -f '" + failureList + "'\n");
+        for (Slice slice : plan.slices) {
+            if (!repeats.containsKey(slice)) {
+                out.write(backgroundJob("slice", plan.sliceLog(slice), sliceCommand(plan, slice),
+                        "echo '" + slice.filename() + "' >> '" + failureList + "'"));
+            }
+        }
+        // Nothing gets joined until every slice has either finished or failed, and the repeats
+        // are linked once the clips they repeat have been cut
+        out.write("wait\n");
+        writeRepeatLinks(plan, plan.slices, repeats, failureList, out);
+        for (Slice slice : plan.slices) {
+            writeLogCopy(plan.sliceLog(slice), out);
+        }
+        out.write(reportFailures(failureList, "slices"));
+    }
+
+    // Returns the slice limit for a CoMM as it's written in the script.
+    private static String sliceJobLimit(CommPlan plan) {
+        return (plan.sliceJobs > 0) ? String.valueOf(plan.sliceJobs) : "\"$COMM_CORES\"";
+    }
+
+    // Writes the bash commands for a pipelined CoMM, where there's no barrier between downloading
+    // and slicing. Each source video gets its own background chain that downloads it and then starts
+    // cutting that video's slices right away, while other videos are still downloading. The download
+    // and slice semaphores still cap how many of each run at once, and the slices get joined as soon
+    // as every chain has finished.
+    private static void writePipelinedCommands(CommPlan plan, Writer out) throws IOException {
+        String downloadFailures = plan.location.cacheDir() + "/failed_downloads.txt";
+        String sliceFailures = plan.location.cacheDir() + "/failed_slices.txt";
+        out.write("comm_sem_init download " + plan.downloadJobs + "\n");
+        out.write("comm_sem_init slice " + sliceJobLimit(plan) + "\n");
+        out.write("rm -f '" + downloadFailures + "' '" + sliceFailures + "'\n");
+
+        Map<String, List<Slice>> slicesBySource = plan.slicesBySource();
+        Map<Slice, Slice> repeats = plan.repeatedClips();
+        for (String url : plan.downloadUrls) {
+            List<Slice> sourceSlices = slicesBySource.getOrDefault(SourceStore.digest(url),
+                    Collections.emptyList());
+
+            List<Slice> repeatedClips = new ArrayList<>();
+            StringBuilder chain = new StringBuilder();
+            chain.append(semaphoreJob("download", plan.downloadLog(url), downloadCommand(plan, url),
+                    "echo " + Commands.quote(url) + " >> '" + downloadFailures + "'")).append("\n");
+            chain.append("if [ $? -eq 0 ]; then\n");
+            for (Slice slice : sourceSlices) {
+                if (repeats.containsKey(slice)) {
+                    repeatedClips.add(slice);
+                    continue;
+                }
+                chain.append(indent(backgroundJob("slice", plan.sliceLog(slice), sliceCommand(plan, slice),
+                        "echo '" + slice.filename() + "' >> '" + sliceFailures + "'")));
+            }
+            chain.append("    wait\n");
+            // A clip always repeats one of the same video, so it's cut by now
+            StringWriter links = new StringWriter();
+            writeRepeatLinks(plan, repeatedClips, repeats, sliceFailures, links);
+            chain.append(indent(links.toString()));
+            chain.append("else\n");
+            // The slices can't be cut without their source video
+            for (Slice slice : sourceSlices) {
+                chain.append("    echo '").append(slice.filename()).append("' >> '").append(sliceFailures)
+                        .append("'\n");
+            }
+            chain.append("fi\n");
+            out.write("(\n" + indent(chain.toString()) + ") &\n");
+        }
+
+        // The join starts as soon as the last slice exists
+        out.write("wait\n");
+        for (String url : plan.downloadUrls) {
+            writeLogCopy(plan.downloadLog(url), out);
+        }
+        for (Slice slice : plan.slices) {
+            writeLogCopy(plan.sliceLog(slice), out);
+        }
+        out.write(reportFailures(downloadFailures, "downloads"));
+        out.write(reportFailures(sliceFailures, "slices"));
+    }
+
+    // Writes the bash commands that join all the slices of a CoMM into the final video, unless the
+    // journal says it's already been made. The journal only records a video made from every slice,
+    // and then marks the run as done.
+    private static void writeJoiningCommands(CommPlan plan, Writer out) throws IOException {
+        String output = Commands.quote(plan.location.cacheDir() + "/" + plan.outputName());
+        String cacheDir = plan.location.cacheDir();
+        out.write("COMM_JOINED=0\n");
+        out.write("if comm_journaled join " + output + "; then\n"
+                + "    echo \"Already joined " + plan.location.cacheDir() + "/" + plan.outputName()
+                + " (checked against the journal)\"\n"
+                + "else\n");
+
+        // Change directories into the CoMM's cache directory
+        out.write(indent(loggedCommand("cd " + cacheDir, false)));
+
+        // Create the text file that will hold a list of all the slice filenames. It's emptied if it's
+        // there already, since a run that's resuming keeps the cache of a config.noCache() CoMM, along
+        // with the list from a join that didn't finish.
+        String sliceListFileName = plan.sliceListName();
+        out.write(indent(loggedCommand(": > " + sliceListFileName, false)));
+
+        String videoFilter = writeFrameSize(plan, out);
+        if (plan.singlePass) {
+            // List each slice as its cached source with an in point and out point, leaving out the
+            // slices of failed downloads, and render the video from the sources in one pass
+            for (Slice slice : plan.slices) {
+                out.write("    [ -e '" + plan.cachedSourceName(slice) + "' ] && printf '%s' "
+                        + Commands.quote(plan.singlePassEntry(slice)) + " >> '" + sliceListFileName + "'\n");
+            }
+        } else {
+            // List each slice that was made, in the CoMM's order. A glob would list them by name, which
+            // stops matching that order once the slice numbers go past four digits.
+            for (Slice slice : plan.slices) {
+                out.write("    [ -e '" + slice.filename() + "' ] && echo \"file '" + slice.filename() + "'\" >> '"
+                        + sliceListFileName + "'\n");
+            }
+        }
+
+        // Use ffmpeg to concatenate all the slices from the slice file list
+        List<String> join;
+        if (plan.normalize && videoFilter == null) {
+            // The slices (or the in points and out points) all start on a keyframe of the same profile
+            join = Commands.copyConcat(sliceListFileName, plan.outputName());
+        } else if (plan.singlePass) {
+            join = Commands.singlePassConcat(sliceListFileName, videoFilter, plan.preview, plan.outputName());
+        } else {
+            join = Commands.concat(sliceListFileName, videoFilter, plan.preview, plan.outputName());
+        }
+        out.write(indent(loggedJoin(expandFrameSize(Commands.toShell(join)))));
+
+        // Return to the root directory
+        out.write(indent(loggedCommand("cd -", false)));
+        out.write("fi\n");
+
+        out.write("if [ \"$COMM_JOINED\" = 1 ] && [ ! -s '" + cacheDir + "/failed_downloads.txt' ] \\\n"
+                + "        && [ ! -s '" + cacheDir + "/failed_slices.txt' ]; then\n"
+                + "    comm_journal join " + output + "\n"
+                + "    echo done >> \"$COMM_JOURNAL\"\n"
+                + "fi\n");
+    }
+
+    // Returns the video filter that scales the plan's video (see FrameScale), or null if it isn't
+    // scaled. If the frame depends on the sources, the commands that work it out are written first,
+    // and the filter refers to it as COMM_FRAME_W and COMM_FRAME_H.
+    private static String writeFrameSize(CommPlan plan, Writer out) throws IOException {
+        FrameScale scale = plan.renderScale();
+        if (scale == null) {
+            return null;
+        }
+        if (!scale.needsSourceSizes()) {
+            return scale.filter();
+        }
+        StringBuilder command = new StringBuilder("read -r COMM_FRAME_W COMM_FRAME_H < <(comm_frame_size ")
+                .append(scale.width).append(' ').append(scale.height).append(' ')
+                .append(scale.keepProportions ? 1 : 0).append(' ')
+                .append(Boolean.TRUE.equals(scale.preventUpscaling) ? 1 : 0).append(' ').append(scale.maxHeight);
+        for (String url : plan.downloadUrls) {
+            command.append(" '").append(plan.cachedSourceName(url)).append('\'');
+        }
+        out.write("    " + command + ")\n");
+        out.write("    echo \"Scaling to ${COMM_FRAME_W}x${COMM_FRAME_H}\"\n");
+        return scale.filter(FRAME_WIDTH, FRAME_HEIGHT);
+    }
+
+    // Lets bash expand the frame size variables in a command line. They're only ever in a quoted
+    // filter argument, so the quotes are closed around each one.
+    private static String expandFrameSize(String command) {
+        return command.replace(FRAME_WIDTH, "'\"" + FRAME_WIDTH + "\"'")
+                .replace(FRAME_HEIGHT, "'\"" + FRAME_HEIGHT + "\"'");
+    }
+
+    // Same as loggedCommand(), for the ffmpeg command that joins the video. COMM_JOINED is set to 1
+    // if it succeeds.
+    private static String loggedJoin(String command) {
+        return "echo\necho \"" + command + "\" | " + TIMESTAMP + "\necho\n"
+                + "if time " + command + "; then\n"
+                + "    COMM_JOINED=1\n"
+                + "fi\n"
+                + "echo\n";
+    }
+}
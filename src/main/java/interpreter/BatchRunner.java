@@ -0,0 +1,195 @@
+package interpreter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Translates and renders a whole batch of CoMM files in one JVM. The files are parsed in parallel,
+ * and all of their CoMMs are rendered as one run: every distinct video is downloaded once up front,
+ * whichever files use it, and then the CoMMs share one pool of workers. A summary of how each file
+ * did is printed at the end.
+ *
+ * Ex:
+ * java -jar Comm.jar -j 4 nightly/           // every .comm file under nightly/
+ * java -jar Comm.jar a.comm b.comm c.comm
+ */
+class BatchRunner {
+    // Where the batch's run log is kept, next to the CoMM caches.
+    static final String runLogPath = CommLocation.cachesDirectory + "/RUN_batch.log";
+
+    private final List<File> files;
+
+    // The translation of each file, in the same order as the files
+    private final Map<File, CodeGenerator> translations = new LinkedHashMap<>();
+
+    // The errors for each file that couldn't be translated
+    private final Map<File, String> errors = new LinkedHashMap<>();
+
+    BatchRunner(List<File> files) {
+        this.files = files;
+    }
+
+    /**
+     * Returns the CoMM files given on the command line, with each directory replaced by the .comm
+     * files under it (in alphabetical order).
+     */
+    static List<File> expand(List<String> paths) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(path);
+            if (!file.isDirectory()) {
+                files.add(file);
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(file.toPath())) {
+                files.addAll(walk.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".comm"))
+                        .sorted()
+                        .map(Path::toFile)
+                        .collect(Collectors.toList()));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Translates all the files at the same time, one per processor core. Files with errors are
+     * reported and left out of the run.
+     */
+    void translateAll() throws InterruptedException {
+        ExecutorService parsers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            Map<File, Future<CodeGenerator>> parsing = new LinkedHashMap<>();
+            for (File file : files) {
+                parsing.put(file, parsers.submit(() -> Comm.translate(() -> new FileInputStream(file), false)));
+            }
+            for (Map.Entry<File, Future<CodeGenerator>> entry : parsing.entrySet()) {
+                try {
+                    CodeGenerator generator = entry.getValue().get();
+                    if (generator.containsErrors()) {
+                        errors.put(entry.getKey(), generator.getErrors());
+                    } else if (generator.getPlans().isEmpty()) {
+                        errors.put(entry.getKey(), "There are no CoMM definitions!\n");
+                    } else {
+                        translations.put(entry.getKey(), generator);
+                    }
+                } catch (ExecutionException exception) {
+                    errors.put(entry.getKey(), exception.getCause().getMessage() + "\n");
+                }
+            }
+        } finally {
+            parsers.shutdownNow();
+        }
+        findClashingOutputs();
+
+        for (Map.Entry<File, String> error : errors.entrySet()) {
+            System.err.println("[!] " + error.getKey().getPath() + "\n" + error.getValue());
+        }
+        System.out.println("[*] Translated " + translations.size() + " of " + files.size() + " files ("
+                + plans().size() + " videos)");
+    }
+
+    // Each CoMM file only checks its own definitions for repeated filenames, so two files could
+    // try to make the same video. The later file is left out of the run.
+    private void findClashingOutputs() {
+        Map<String, File> outputs = new HashMap<>();
+        Iterator<Map.Entry<File, CodeGenerator>> iterator = translations.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<File, CodeGenerator> entry = iterator.next();
+            StringBuilder clashes = new StringBuilder();
+            for (CommPlan plan : entry.getValue().getPlans()) {
+                String output = Paths.get(plan.location.cacheDir(), plan.outputName()).normalize().toString();
+                File earlier = outputs.get(output);
+                if (earlier != null) {
+                    clashes.append("  The video '").append(output).append("' is already made by ")
+                            .append(earlier.getPath()).append("!\n");
+                }
+            }
+            if (clashes.length() > 0) {
+                errors.put(entry.getKey(), clashes.toString());
+                iterator.remove();
+                continue;
+            }
+            for (CommPlan plan : entry.getValue().getPlans()) {
+                outputs.put(Paths.get(plan.location.cacheDir(), plan.outputName()).normalize().toString(),
+                        entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the plans of every file that was translated, in order.
+     */
+    List<CommPlan> plans() {
+        List<CommPlan> plans = new ArrayList<>();
+        for (CodeGenerator generator : translations.values()) {
+            plans.addAll(generator.getPlans());
+        }
+        return plans;
+    }
+
+    /**
+     * Writes an exported bash script for each file that was translated.
+     */
+    void exportAll() throws IOException {
+        BashScriptWriter writer = new BashScriptWriter();
+        for (CodeGenerator generator : translations.values()) {
+            CommLocation firstLoc = generator.previousLocations.get(0);
+            Path script = Paths.get(firstLoc.cacheDir(), firstLoc.scriptName());
+            Files.createDirectories(script.getParent());
+            try (Writer out = Files.newBufferedWriter(script, StandardCharsets.UTF_8)) {
+                writer.write(generator.getPlans(), out);
+            }
+            System.out.println("        " + script);
+        }
+    }
+
+    /**
+     * Returns the summary of how each file did in the run.
+     */
+    String summary(TaskEngine engine, long elapsedMillis) {
+        StringBuilder summary = new StringBuilder("[*] Batch Summary\n");
+        int succeededFiles = 0;
+        int failedFiles = 0;
+        int videos = 0;
+        int madeVideos = 0;
+        for (File file : files) {
+            String status;
+            String detail;
+            CodeGenerator generator = translations.get(file);
+            if (generator == null) {
+                status = "ERRORS";
+                detail = "not translated";
+            } else {
+                int failed = 0;
+                for (CommPlan plan : generator.getPlans()) {
+                    if (!Boolean.TRUE.equals(engine.result(plan))) {
+                        failed++;
+                    }
+                }
+                int total = generator.getPlans().size();
+                videos += total;
+                madeVideos += total - failed;
+                if (failed == 0) {
+                    succeededFiles++;
+                    status = "OK";
+                    detail = total + ((total == 1) ? " video" : " videos");
+                } else {
+                    failedFiles++;
+                    status = "FAILED";
+                    detail = failed + " of " + total + " videos had errors";
+                }
+            }
+            summary.append(String.format("        %-7s %s  (%s)%n", status, file.getPath(), detail));
+        }
+        summary.append(String.format("    %d files: %d OK, %d with errors, %d not translated. "
+                        + "%d of %d videos made without errors in %.1f min.%n",
+                files.size(), succeededFiles, failedFiles, errors.size(), madeVideos, videos,
+                elapsedMillis / 60000.0));
+        return summary.toString();
+    }
+}
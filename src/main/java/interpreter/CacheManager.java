@@ -0,0 +1,233 @@
+package interpreter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Keeps the source store and the slice store under a disk budget by evicting the least recently
+ * used files. Runs (and exported scripts) append a line to the access log every time they use a
+ * stored file; those lines are folded into a persistent index, so eviction decisions take earlier
+ * runs into account. Files that have never been logged count as last used when they were written.
+ *
+ * Ex:
+ * java -jar Comm.jar --cache-limit 20G reels.comm   // evicts down to 20 GiB after the run
+ */
+class CacheManager {
+    // Where runs record each use of a stored file, as "<epoch seconds> <path>" lines.
+    static final String accessLog = CommLocation.cachesDirectory + "/.access_log";
+
+    // The last access time of every stored file, in epoch milliseconds, keyed by its path
+    // relative to the caches directory.
+    private static final String indexFile = CommLocation.cachesDirectory + "/.cache_index";
+
+    private final Path cachesDir = Paths.get(CommLocation.cachesDirectory).normalize();
+    private final long budget;
+    private final Properties index = new Properties();
+
+    /**
+     * @param budget the maximum number of bytes the stores can hold.
+     */
+    CacheManager(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Parses a size like "750M" or "20G" (powers of 1024), or a plain number of bytes.
+     *
+     * @throws NumberFormatException if it isn't a valid size.
+     */
+    static long parseSize(String size) throws NumberFormatException {
+        String digits = size.trim().toUpperCase();
+        long multiplier = 1;
+        if (digits.endsWith("B")) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        if (digits.endsWith("K")) {
+            multiplier = 1L << 10;
+        } else if (digits.endsWith("M")) {
+            multiplier = 1L << 20;
+        } else if (digits.endsWith("G")) {
+            multiplier = 1L << 30;
+        } else if (digits.endsWith("T")) {
+            multiplier = 1L << 40;
+        }
+        if (multiplier > 1) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        long value = Long.parseLong(digits);
+        if (value < 0) {
+            throw new NumberFormatException("Sizes can't be negative: " + size);
+        }
+        try {
+            return Math.multiplyExact(value, multiplier);
+        } catch (ArithmeticException exception) {
+            throw new NumberFormatException("Size is too big: " + size);
+        }
+    }
+
+    /**
+     * Brings the access index up to date and evicts the least recently used stored files (and
+     * the cache links that point at them) until the stores fit in the budget.
+     */
+    void enforceBudget() throws IOException {
+        if (!Files.isDirectory(cachesDir)) {
+            return;
+        }
+        loadIndex();
+        foldAccessLog();
+
+        List<Path> stored = new ArrayList<>();
+        stored.addAll(listStored(Paths.get(SourceStore.storeDir())));
+        stored.addAll(listStored(Paths.get(SliceStore.storeDir())));
+        long total = 0;
+        for (Path file : stored) {
+            total += Files.size(file);
+        }
+
+        if (total > budget) {
+            System.out.println("[*] The stores hold " + total + " bytes; evicting down to " + budget + "...");
+            stored.sort(Comparator.comparingLong(this::lastAccess));
+            Map<Object, List<Path>> links = findCacheLinks();
+            for (Path file : stored) {
+                if (total <= budget) {
+                    break;
+                }
+                total -= evict(file, links);
+            }
+        }
+        saveIndex();
+    }
+
+    // Returns the last access time of a stored file, falling back to when it was written.
+    private long lastAccess(Path file) {
+        String logged = index.getProperty(indexKey(file));
+        if (logged != null) {
+            return Long.parseLong(logged);
+        }
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException exception) {
+            return 0;
+        }
+    }
+
+    // Deletes a stored file and everything in the CoMM caches that links to it, and returns the
+    // number of bytes that were freed.
+    private long evict(Path file, Map<Object, List<Path>> links) throws IOException {
+        long size = Files.size(file);
+        Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        Path target = file.toAbsolutePath().normalize();
+        List<Path> cacheLinks = new ArrayList<>(links.getOrDefault(target, Collections.emptyList()));
+        if (fileKey != null) {
+            cacheLinks.addAll(links.getOrDefault(fileKey, Collections.emptyList()));
+        }
+        for (Path link : cacheLinks) {
+            Files.deleteIfExists(link);
+        }
+        Files.deleteIfExists(file);
+        index.remove(indexKey(file));
+        System.out.println("        Evicted " + file);
+        return size;
+    }
+
+    // Maps the files in the CoMM caches to what they link to: hard links by their file key (the
+    // inode on Unix), and symbolic links by the absolute path of their target.
+    private Map<Object, List<Path>> findCacheLinks() throws IOException {
+        Map<Object, List<Path>> links = new HashMap<>();
+        try (DirectoryStream<Path> caches = Files.newDirectoryStream(cachesDir, Files::isDirectory)) {
+            for (Path cache : caches) {
+                if (cache.getFileName().toString().startsWith(".")) {
+                    // The stores themselves
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(cache)) {
+                    for (Path file : files) {
+                        Object key;
+                        if (Files.isSymbolicLink(file)) {
+                            key = file.resolveSibling(Files.readSymbolicLink(file)).toAbsolutePath().normalize();
+                        } else {
+                            key = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+                        }
+                        if (key != null) {
+                            links.computeIfAbsent(key, k -> new ArrayList<>()).add(file);
+                        }
+                    }
+                }
+            }
+        }
+        return links;
+    }
+
+    // Returns the finished files in a store directory (not the partial files of cuts in progress).
+    private static List<Path> listStored(Path store) throws IOException {
+        List<Path> stored = new ArrayList<>();
+        if (!Files.isDirectory(store)) {
+            return stored;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(store, "*.mkv")) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && !file.getFileName().toString().contains(".partial")) {
+                    stored.add(file);
+                }
+            }
+        }
+        return stored;
+    }
+
+    // Moves the lines of the access log into the index. The log is renamed before it's read, so
+    // lines a running CoMM appends in the meantime go to a fresh log and aren't lost.
+    private void foldAccessLog() throws IOException {
+        Path log = Paths.get(accessLog);
+        if (!Files.exists(log)) {
+            return;
+        }
+        Path folding = log.resolveSibling(log.getFileName() + ".folding");
+        Files.move(log, folding, StandardCopyOption.REPLACE_EXISTING);
+        for (String line : Files.readAllLines(folding, StandardCharsets.UTF_8)) {
+            int space = line.indexOf(' ');
+            if (space <= 0) {
+                continue;
+            }
+            try {
+                long time = Long.parseLong(line.substring(0, space)) * 1000;
+                String key = indexKey(Paths.get(line.substring(space + 1)));
+                String previous = index.getProperty(key);
+                if (previous == null || Long.parseLong(previous) < time) {
+                    index.setProperty(key, String.valueOf(time));
+                }
+            } catch (NumberFormatException ignored) {
+                // A line cut short by an interrupted run
+            }
+        }
+        Files.delete(folding);
+    }
+
+    // Returns the path of a stored file relative to the caches directory, e.g. ".sources/<digest>.mkv".
+    private String indexKey(Path file) {
+        return cachesDir.relativize(file.normalize()).toString();
+    }
+
+    private void loadIndex() throws IOException {
+        File file = new File(indexFile);
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                index.load(in);
+            }
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        // Entries for files that were removed some other way (like config.noCache()) are dropped
+        for (String key : index.stringPropertyNames()) {
+            if (!Files.exists(cachesDir.resolve(key))) {
+                index.remove(key);
+            }
+        }
+        try (OutputStream out = new FileOutputStream(indexFile)) {
+            index.store(out, "CoMM cache index: last access time (epoch ms) of each stored file");
+        }
+    }
+}
@@ -6,17 +6,17 @@ import comm_grammar.*;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Consumer;
 
 public class CodeGenerator extends comm_grammarBaseListener {
-    // The buffers are populated as the parse tree is walked, and then when it's complete
-    // they're used to generate the bash script
-    private StringBuffer resultsBuffer = new StringBuffer();
-    private StringBuffer downloadBuffer = new StringBuffer();
-    private StringBuffer slicingBuffer = new StringBuffer();
-    private StringBuffer joiningBuffer = new StringBuffer();
-    private StringBuffer errorBuffer = new StringBuffer();
-
-    // This gets set to true when text is added to the errorBuffer. The bash script will
+    // A plan is made for each CoMM definition once the parse tree walker has walked through it.
+    // They're either run by the TaskEngine or written out as a bash script by the BashScriptWriter.
+    private ArrayList<CommPlan> plans = new ArrayList<>();
+    private StringBuilder errorBuffer = new StringBuilder();
+
+    // This gets set to true when text is added to the errorBuffer. The plans will
     // not run, and the errors will be shown to the user.
     private boolean errorStatus = false;
 
@@ -27,13 +27,63 @@ public class CodeGenerator extends comm_grammarBaseListener {
     // be joined together to make the final video
     private int sliceIndex = 0;
 
+    // Set by config.pipeline() for the current CoMM. Null means it wasn't set, so defaultPipelined is used.
+    private Boolean pipelined = null;
+
+    // Set by config.fastSlicing() for the current CoMM. Slices are cut precisely (decoding from the
+    // start of the source video) unless it's true.
+    private boolean fastSlicing = false;
+
+    // Set by config.singlePass() for the current CoMM. Null means it wasn't set, so defaultSinglePass is used.
+    private Boolean singlePass = null;
+
+    // Set by config.splitOverlaps() for the current CoMM. Overlapping clips are cut separately
+    // unless it's true.
+    private boolean splitOverlaps = false;
+
+    // Set by config.normalize() for the current CoMM. Sources are used as they were downloaded
+    // unless it's true.
+    private boolean normalize = false;
+
+    // The frame size set by config.scale(), config.scaleByWidth() or config.scaleByHeight() for the
+    // current CoMM, as {width, height, keepProportions}. A zero size is worked out from the videos
+    // (see FrameScale). Null means the video isn't scaled.
+    private int[] scale = null;
+
+    // Set by config.preventUpscaling() for the current CoMM. Null means it wasn't set.
+    private Boolean preventUpscaling = null;
+
+    // The number of statements in the current CoMM. They're counted as they go by because the
+    // parse tree can be pruned as it's read (see Comm.translate()).
+    private int statementCount = 0;
+
+    // The slices for the current CoMM, in the order they were added
+    private ArrayList<Slice> slices = new ArrayList<>();
+
+    // The number of slices that can be cut at once for the current CoMM, as set by
+    // config.parallelSlices(). Zero means it wasn't set, so defaultSliceJobs is used.
+    private int sliceJobs = 0;
+
     // Stores the value of variables for recall elsewhere in the comm
     private HashMap<String, String> variables = new HashMap<>();
 
-    // Stores the hash codes for urls to be downloaded. Ensures we only download a url
-    // once per cache (unless noCache() is set)
-    // TODO: Convert this to a Set rather than checking for `.contains()` condition.
-    private ArrayList<Integer> urlHashCodes = new ArrayList<>();
+    // The number of youtube-dl processes that can run at once for the current CoMM, as set by
+    // config.parallelDownloads(). Zero means it wasn't set, so defaultDownloadJobs is used.
+    private int downloadJobs = 0;
+
+    // The urls to be downloaded for the current CoMM, in the order they were first added
+    private ArrayList<String> downloadUrls = new ArrayList<>();
+
+    // Stores the source store digests for urls to be downloaded. Ensures we only download a url
+    // once per CoMM (unless noCache() is set)
+    private HashSet<String> sourceDigests = new HashSet<>();
+
+    // The probes of the stored sources used so far (see SourceProbe), keyed by their digest, to check
+    // clips against. Sources that haven't been probed map to null, so each one is only looked up once.
+    private HashMap<String, SourceProbe> probes = new HashMap<>();
+
+    // The filenames of all the CoMMs defined so far, to catch one being used twice
+    private HashSet<String> usedFilenames = new HashSet<>();
 
     // Directory information for the current CoMM
     private CommLocation location = new CommLocation();
@@ -44,13 +94,53 @@ public class CodeGenerator extends comm_grammarBaseListener {
     ArrayList<CommLocation> previousLocations = new ArrayList<>();
 
     /**
-     * Returns the contents of the bash script that does all the video magic.
-     * This only gets called after the parse tree walker is finished walkin'.
+     * The number of parallel downloads used by CoMMs that don't call config.parallelDownloads().
+     * A value of 1 downloads the videos one at a time.
+     */
+    int defaultDownloadJobs = 1;
+
+    /**
+     * The number of slices cut at the same time by CoMMs that don't call config.parallelSlices().
+     * Zero means one per processor core.
+     */
+    int defaultSliceJobs = 0;
+
+    /**
+     * Whether CoMMs that don't call config.pipeline() start slicing each video as soon as it's
+     * downloaded, instead of waiting for all the downloads to finish.
+     */
+    boolean defaultPipelined = false;
+
+    /**
+     * Whether CoMMs that don't call config.singlePass() render the final video in one ffmpeg pass
+     * straight from the cached sources, instead of cutting slice files and joining them.
      */
-    String getResults() {
-        return "#!/usr/bin/env bash\n\n"
-                + "# Codable Media Mashup (CoMM) bash script\n\n"
-                + resultsBuffer.toString();
+    boolean defaultSinglePass = false;
+
+    /**
+     * Whether every CoMM is rendered as a preview (see CommPlan.preview) instead of the full video.
+     */
+    boolean preview = false;
+
+    /**
+     * Whether each video definition is printed as it's read.
+     */
+    boolean printDefinitions = true;
+
+    /**
+     * If set, each plan is handed to it as soon as its CoMM definition has been read, and isn't
+     * kept for getPlans(). That lets a huge CoMM file be written out while it's still being read.
+     * Plans are still handed over after an error has been found, so check containsErrors().
+     */
+    Consumer<CommPlan> planConsumer = null;
+
+    /**
+     * Returns the plans for all the CoMM definitions, in the order they were defined.
+     * This only gets called after the parse tree walker is finished walkin'. It's empty if the
+     * plans went to the planConsumer.
+     */
+    List<CommPlan> getPlans() {
+        return plans;
     }
 
     /**
@@ -67,56 +157,91 @@ public class CodeGenerator extends comm_grammarBaseListener {
         return errorBuffer.toString();
     }
 
-    // Returns the bash commands to echo back the command with a timestamp and then run it.
-    private static String loggedCommand(String command, boolean timed) {
-        String time = (timed) ? "time " : "";
-        String extraEcho = (timed) ? "echo\n" : "";
-        // The "ts" command is from the "moreutils" package and puts a timestamp on the output.
-        return "echo\necho \"" + command + "\" | ts '[%Y-%m-%d %H:%M:%.S]'\necho\n"
-                + time + command + "\n" + extraEcho;
-    }
-
-    // Returns all the file management commands for the current CoMM (cleaning the cache directory
-    // and creating a new cache directory if needed).
-    private String getFileManamentCommands() {
-        if (cachingDisabled) {
-            // If caching is disabled, we remove the directory and then create it again
-            return loggedCommand("rm -rf " + location.cacheDir(), false)
-                    + loggedCommand("mkdir -p " + location.cacheDir() + " 2>/dev/null", false);
-        } else {
-            // If caching isn't disabled, we just remove the slice and slice list files. The downloaded source
-            // video files will still remain in the cache. We use "2>/dev/null" to redirect errors to the abyss,
-            // because if the directory already exists, mkdir will give an error.
-            return loggedCommand("rm -f " + location.cacheDir() + "/slice* "
-                    + location.cacheDir() + "/*_slice_list.txt ", false)
-                    + loggedCommand("mkdir -p " + location.cacheDir() + " 2>/dev/null", false);
-        }
+    /**
+     * Returns a new generator with the same defaults, for translating a program again from the
+     * start. The planConsumer isn't copied, and definitions aren't printed a second time.
+     */
+    CodeGenerator freshCopy() {
+        CodeGenerator copy = new CodeGenerator();
+        copy.defaultDownloadJobs = defaultDownloadJobs;
+        copy.defaultSliceJobs = defaultSliceJobs;
+        copy.defaultPipelined = defaultPipelined;
+        copy.defaultSinglePass = defaultSinglePass;
+        copy.preview = preview;
+        copy.printDefinitions = false;
+        return copy;
     }
 
-    // Writes to the downloadBuffer the bash commands for downloading a url.
-    // Consider the following flags if CoMM is made public on a web server:
-    //     --max-filesize
-    //     --limit-rate
-    //     --retries
-    //     --buffer-size
+    // Queues up a url to be downloaded for the current CoMM.
     private void downloadIfNeeded(String url) {
         if (url == null) {
             return;
         }
-        int hash = url.hashCode();
-        if (errorStatus || urlHashCodes.contains(hash)) {
+        if (errorStatus || !sourceDigests.add(SourceStore.digest(url))) {
             return;
         }
-        urlHashCodes.add(hash);
-        String outputFormat = location.cacheDir() + "/vid" + hash;
-        // We can change this extension later if we want, but I think youtube-dl defaults to mkv,
-        // so it's faster not to recode it as something else
-        String ext = "mkv";        // (currently supported in youtube-dl: mp4|flv|ogg|webm|mkv|avi)
-        // TODO: Explain youtube-dl flags
-        String command = "youtube-dl --abort-on-error --no-color --recode-video " + ext
-                + " --no-playlist --no-overwrites --no-post-overwrites --no-cache-dir --newline"
-                + " --output '" + outputFormat + "' '" + url + "'";
-        downloadBuffer.append(loggedCommand(command, true));
+        downloadUrls.add(url);
+    }
+
+    // Returns the boolean given by a `(vname | bool_lt)` parameter. If it's missing or isn't `true` or
+    // `false`, the error is written to the errorBuffer and null is returned.
+    private Boolean fetchBoolean(comm_grammarParser.VnameContext vname, comm_grammarParser.Bool_ltContext bool_lt,
+                                 String statement, int line) {
+        String value = (bool_lt != null) ? bool_lt.getText() : null;
+        if (vname != null) {
+            try {
+                value = fetchVariable(vname.getText(), statement, line);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        if ("true".equals(value) || "false".equals(value)) {
+            return Boolean.valueOf(value);
+        }
+        errorStatus = true;
+        String errMsg = "line " + line + " - " + statement + ";\n"
+                + "  '" + value + "' is not true or false!\n";
+        errorBuffer.append(errMsg);
+        return null;
+    }
+
+    // Returns the positive integer given by a `(vname | int_lit)` parameter. If it's missing or isn't
+    // a positive integer, the error is written to the errorBuffer and 0 is returned.
+    private int fetchPositiveInt(comm_grammarParser.VnameContext vname, comm_grammarParser.Int_litContext int_lit,
+                                 String statement, int line) {
+        String value = (int_lit != null) ? int_lit.getText() : null;
+        if (vname != null) {
+            try {
+                value = fetchVariable(vname.getText(), statement, line);
+            } catch (IllegalArgumentException e) {
+                return 0;
+            }
+        }
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        errorStatus = true;
+        String errMsg = "line " + line + " - " + statement + ";\n"
+                + "  '" + value + "' is not a positive whole number!\n";
+        errorBuffer.append(errMsg);
+        return 0;
+    }
+
+    // Returns the positive integer given by a parameter that's either a vname or an int_lit (see
+    // fetchPositiveInt() above), for rules where it can't be told apart by its type alone.
+    private int fetchPositiveInt(ParseTree param, String statement, int line) {
+        if (param instanceof comm_grammarParser.VnameContext) {
+            return fetchPositiveInt((comm_grammarParser.VnameContext) param, null, statement, line);
+        } else if (param instanceof comm_grammarParser.Int_litContext) {
+            return fetchPositiveInt(null, (comm_grammarParser.Int_litContext) param, statement, line);
+        }
+        // The parser has already reported the syntax error
+        errorStatus = true;
+        return 0;
     }
 
     // Strips double quotes from around the given string, if it has them. Otherwise just returns the string.
@@ -158,47 +283,66 @@ public class CodeGenerator extends comm_grammarBaseListener {
         return (Integer.parseInt(parts[0]) * 60) + Integer.parseInt(parts[1]);
     }
 
-    // Writes all the commands generated for the current CoMM definition to the resultsBuffer,
-    // and then resets the instance variables in preparation for another CoMM definition.
+    // Makes the plan for the current CoMM definition, and then resets the instance variables in
+    // preparation for another CoMM definition. The plan is made once the whole CoMM has been read,
+    // because the config statements can come after the add() statements.
     private void cleanupForNewComm() {
-        // TODO: Add other metadata here as necessary
-        String resultAddition = "\n\n############################################\n"
-                + "#   Filename: " + location.filename + "\n"
-                + "#   Cache Folder: " + location.cacheName + "\n"
-                + "\n##########     File Management    ##########\n"
-                + getFileManamentCommands()
-                + "\n##########     Video Downloads    ##########\n"
-                + downloadBuffer.toString()
-                + "\n##########     Video Slicing      ##########\n"
-                + slicingBuffer.toString()
-                + "\n##########     Video Joining      ##########\n"
-                + joiningBuffer.toString();
-        resultsBuffer.append(resultAddition);
+        CommPlan plan = new CommPlan();
+        plan.location = location;
+        plan.downloadUrls = downloadUrls;
+        plan.slices = slices;
+        plan.cachingDisabled = cachingDisabled;
+        plan.downloadJobs = (downloadJobs > 0) ? downloadJobs : defaultDownloadJobs;
+        plan.sliceJobs = (sliceJobs > 0) ? sliceJobs : defaultSliceJobs;
+        plan.pipelined = (pipelined != null) ? pipelined : defaultPipelined;
+        plan.fastSlicing = fastSlicing;
+        plan.singlePass = preview || ((singlePass != null) ? singlePass : defaultSinglePass);
+        plan.preview = preview;
+        plan.normalize = normalize;
+        if (splitOverlaps && !plan.singlePass) {
+            plan.splitOverlappingClips();
+        }
+        if (scale != null) {
+            plan.scale = new FrameScale(scale[0], scale[1], scale[2] != 0, preventUpscaling, 0);
+        }
+        if (planConsumer != null) {
+            planConsumer.accept(plan);
+        } else {
+            plans.add(plan);
+        }
 
         // Print out what videos will be created
-        if (!errorStatus) {
+        if (!errorStatus && printDefinitions) {
             System.out.println("[*] Video Definition");
-            System.out.println("        Filename: " + location.filename + "." + location.extension);
+            System.out.println("        Filename: " + plan.outputName());
             System.out.println("        Cache:    " + location.cacheName);
             System.out.println("        Path:     " + location.cacheDir());
         }
 
         // Clean things up for the next run
-        downloadBuffer = new StringBuffer();
-        slicingBuffer = new StringBuffer();
-        joiningBuffer = new StringBuffer();
+        downloadUrls = new ArrayList<>();
+        slices = new ArrayList<>();
         previousLocations.add(location);
         location = new CommLocation();
         sliceIndex = 0;
+        statementCount = 0;
         cachingDisabled = false;
-
-        // This actually results in the youtube-dl command being run again on all
-        // videos; HOWEVER, since we passed in the '--no-overwrites' flag, it won't
-        // redownload them if they're already in the cache.
-        urlHashCodes = new ArrayList<>();
+        downloadJobs = 0;
+        sliceJobs = 0;
+        pipelined = null;
+        fastSlicing = false;
+        singlePass = null;
+        splitOverlaps = false;
+        normalize = false;
+        scale = null;
+        preventUpscaling = null;
+
+        // This actually results in the download step being run again on all
+        // videos; HOWEVER, a video is only downloaded if it isn't in the source
+        // store yet.
+        sourceDigests = new HashSet<>();
     }
 
-
     // #######################  OVERWRITTEN ANTLR PARSER METHODS  ###########################
     //
     // There are exit and enter methods for every parser rule (plus some extras), and they
@@ -210,55 +354,45 @@ public class CodeGenerator extends comm_grammarBaseListener {
     // them all here.
 
     /**
-     * When a CoMM definition is complete, all the "join" bash commands are added to the
-     * joining buffer, and `cleanupForNewComm()` is called to get things ready for more CoMM
-     * definitions.
+     * When a CoMM definition is complete, `cleanupForNewComm()` is called to make its plan and
+     * get things ready for more CoMM definitions.
      */
     public void exitComm(comm_grammarParser.CommContext ctx) {
-        if (ctx.stmnt().size() == 0) {
+        if (statementCount == 0) {
             errorStatus = true;
             String errMsg = "line " + ctx.start.getLine() + " - " + ctx.getText() + "\n"
                     + "  This CoMM definition is empty!\n";
             errorBuffer.append(errMsg);
         }
 
-        // Change directories into the CoMM's cache directory
-        joiningBuffer.append(loggedCommand("cd " + location.cacheDir(), false));
-
-        // Create the text file that will hold a list of all the slice filenames
-        String sliceListFileName = location.filename + "_slice_list.txt";
-        joiningBuffer.append(loggedCommand("touch " + sliceListFileName, false));
-
-        // Iterate through all the slice filenames and add them to the newly-created slice list file
-        joiningBuffer.append("echo \"for f in slice*; do echo \\\"file '\\$f'\\\" >> '")
-                .append(sliceListFileName)
-                .append("'; done\" | ts '[%Y-%m-%d %H:%M:%.S]'\n");
-        joiningBuffer.append("for f in slice*; do echo \"file '$f'\" >> '")
-                .append(sliceListFileName)
-                .append("'; done\n");
-
-        // Use ffmpeg to concatenate all the slices from the slice file list
-        // "-f concat" says we're concatenating the files
-        // "-i '%s'" is the input file, which lists all the slice filenames
-        // "-y" forces overwrite of the output file if it already exists
-        // "%s.%s" is the file with extension
-        String concatFiles = String.format("ffmpeg -f concat -i '%s' -y '%s.%s'",
-                sliceListFileName, location.filename, location.extension);
-        joiningBuffer.append(loggedCommand(concatFiles, true));
-
-        // Return to the root directory
-        joiningBuffer.append(loggedCommand("cd -", false));
-
         // Get ready for the next one
         cleanupForNewComm();
     }
 
     /**
-     * Writes to the slicingBuffer the bash commands for adding an entire video.
+     * Counts the statements in the current CoMM.
+     */
+    public void exitStmnt(comm_grammarParser.StmntContext ctx) {
+        statementCount++;
+    }
+
+    /**
+     * Adds an entire video, or part of one, to the current CoMM's slices.
      */
-    public void exitAdd_all(comm_grammarParser.Add_allContext ctx) {
-        String vname = (ctx.vname() != null) ? ctx.vname().getText() : null;
-        String str_lit = (ctx.str_lit() != null) ? ctx.str_lit().getText() : null;
+    public void exitAdd_clp(comm_grammarParser.Add_clpContext ctx) {
+        // A url followed by a comma is a range, even if a syntax error cut the times short
+        boolean range = ctx.getChildCount() > 3 && ctx.getChild(3).getText().equals(",");
+        if (!range) {
+            addWholeVideo(ctx);
+        } else {
+            addRange(ctx);
+        }
+    }
+
+    // Adds an entire video to the current CoMM's slices.
+    private void addWholeVideo(comm_grammarParser.Add_clpContext ctx) {
+        String vname = (ctx.v1 != null) ? ctx.v1.getText() : null;
+        String str_lit = (ctx.s1 != null) ? ctx.s1.getText() : null;
 
         try {
             str_lit = fetchVariable(vname, ctx.getText(), ctx.start.getLine());
@@ -272,20 +406,11 @@ public class CodeGenerator extends comm_grammarBaseListener {
 
         downloadIfNeeded(str_lit);
 
-        String targetFile = String.format("'%s/vid%d.mkv'", location.cacheDir(), str_lit.hashCode());
-        String sliceFile = String.format("'%s/slice%04d.mkv'", location.cacheDir(), sliceIndex++);
-        // When we add an entire video file, there's no need to slice, so we're
-        // just going to add a link to the file as a placeholder for this "slice"
-        // FIXME: Maybe try to make this a link instead of a copy in the future
-//            slicingBuffer.append(loggedCommand("ln -P " + targetFile + " " + sliceFile, false));
-        // Until that works, let's just copy the file
-        slicingBuffer.append(loggedCommand("cp " + targetFile + " " + sliceFile, false));
+        slices.add(new Slice(sliceIndex++, str_lit, 0, Slice.WHOLE_VIDEO));
     }
 
-    /**
-     * Writes to the slicingBuffer the bash commands for adding part of a video.
-     */
-    public void exitAdd_rng(comm_grammarParser.Add_rngContext ctx) {
+    // Adds part of a video to the current CoMM's slices.
+    private void addRange(comm_grammarParser.Add_clpContext ctx) {
         String url_v = (ctx.v1 != null) ? ctx.v1.getText() : null;
         String url_s = (ctx.s1 != null) ? ctx.s1.getText() : null;
         String start_v = (ctx.v2 != null) ? ctx.v2.getText() : null;
@@ -334,13 +459,31 @@ public class CodeGenerator extends comm_grammarBaseListener {
             return;
         }
 
+        Slice slice = new Slice(sliceIndex, url_s, startSeconds, duration);
+        String problem = checkClip(slice);
+        if (problem != null) {
+            errorStatus = true;
+            String errMsg = "line " + ctx.start.getLine() + " - " + ctx.getText() + "\n"
+                    + "  " + problem + "\n";
+            errorBuffer.append(errMsg);
+            return;
+        }
+
         downloadIfNeeded(url_s);
 
-        String targetFile = String.format("'%s/vid%d.mkv'", location.cacheDir(), url_s.hashCode());
-        String sliceFile = String.format("'%s/slice%04d.mkv'", location.cacheDir(), sliceIndex++);
-        // Use ffmpeg to extract the slice from the target file
-        slicingBuffer.append(loggedCommand("ffmpeg -i " + targetFile + " -ss " + startSeconds
-                + " -t " + duration + " " + sliceFile, true));
+        sliceIndex++;
+        slices.add(slice);
+    }
+
+    // Returns why the clip doesn't fit its video, or null if it does (or the video hasn't been
+    // downloaded and probed yet, so there's no way to tell until the CoMM runs).
+    private String checkClip(Slice slice) {
+        String digest = slice.sourceDigest();
+        if (!probes.containsKey(digest)) {
+            probes.put(digest, SourceProbe.load(slice.url));
+        }
+        SourceProbe probe = probes.get(digest);
+        return (probe != null) ? probe.checkClip(slice) : null;
     }
 
     /**
@@ -359,6 +502,50 @@ public class CodeGenerator extends comm_grammarBaseListener {
         variables.put(vname, stripQuotes(value));
     }
 
+    /**
+     * Sets the size of the current CoMM's video, keeping or ignoring the proportions of each video.
+     */
+    public void exitScale(comm_grammarParser.ScaleContext ctx) {
+        String statement = ctx.getText();
+        int line = ctx.start.getLine();
+        int width = fetchPositiveInt(ctx.getChild(2), statement, line);
+        int height = fetchPositiveInt(ctx.getChild(4), statement, line);
+        ParseTree keep = ctx.getChild(6);
+        Boolean keepProportions = fetchBoolean((keep instanceof comm_grammarParser.VnameContext)
+                ? (comm_grammarParser.VnameContext) keep : null, ctx.bool_lt(), statement, line);
+        if (width > 0 && height > 0 && keepProportions != null) {
+            scale = new int[]{width, height, keepProportions ? 1 : 0};
+        }
+    }
+
+    /**
+     * Sets the height of the current CoMM's video. The width is in proportion to the widest video.
+     */
+    public void exitScl_bh(comm_grammarParser.Scl_bhContext ctx) {
+        int height = fetchPositiveInt(ctx.vname(), ctx.int_lit(), ctx.getText(), ctx.start.getLine());
+        if (height > 0) {
+            scale = new int[]{0, height, 1};
+        }
+    }
+
+    /**
+     * Sets the width of the current CoMM's video. The height is in proportion to the tallest video.
+     */
+    public void exitScl_bw(comm_grammarParser.Scl_bwContext ctx) {
+        int width = fetchPositiveInt(ctx.vname(), ctx.int_lit(), ctx.getText(), ctx.start.getLine());
+        if (width > 0) {
+            scale = new int[]{width, 0, 1};
+        }
+    }
+
+    /**
+     * Keeps the current CoMM's videos from being scaled up, either by shrinking the whole video or
+     * by putting black bars around the videos that are too small.
+     */
+    public void exitPvt_ups(comm_grammarParser.Pvt_upsContext ctx) {
+        preventUpscaling = fetchBoolean(ctx.vname(), ctx.bool_lt(), ctx.getText(), ctx.start.getLine());
+    }
+
     /**
      * Caching won't be used for this video; it will download all videos in the current CoMM definition.
      */
@@ -366,6 +553,58 @@ public class CodeGenerator extends comm_grammarBaseListener {
         cachingDisabled = true;
     }
 
+    /**
+     * Sets how many videos the current CoMM can download at the same time.
+     */
+    public void exitDl_jobs(comm_grammarParser.Dl_jobsContext ctx) {
+        downloadJobs = fetchPositiveInt(ctx.vname(), ctx.int_lit(), ctx.getText(), ctx.start.getLine());
+    }
+
+    /**
+     * Sets how many slices the current CoMM can cut at the same time.
+     */
+    public void exitSl_jobs(comm_grammarParser.Sl_jobsContext ctx) {
+        sliceJobs = fetchPositiveInt(ctx.vname(), ctx.int_lit(), ctx.getText(), ctx.start.getLine());
+    }
+
+    /**
+     * Turns pipelined downloading and slicing on or off for the current CoMM.
+     */
+    public void exitPipelin(comm_grammarParser.PipelinContext ctx) {
+        pipelined = fetchBoolean(ctx.vname(), ctx.bool_lt(), ctx.getText(), ctx.start.getLine());
+    }
+
+    /**
+     * Turns keyframe-aware fast slicing on or off for the current CoMM.
+     */
+    public void exitFst_slc(comm_grammarParser.Fst_slcContext ctx) {
+        Boolean value = fetchBoolean(ctx.vname(), ctx.bool_lt(), ctx.getText(), ctx.start.getLine());
+        fastSlicing = (value != null) && value;
+    }
+
+    /**
+     * Turns single-pass rendering on or off for the current CoMM.
+     */
+    public void exitSgl_pas(comm_grammarParser.Sgl_pasContext ctx) {
+        singlePass = fetchBoolean(ctx.vname(), ctx.bool_lt(), ctx.getText(), ctx.start.getLine());
+    }
+
+    /**
+     * Turns splitting overlapping clips on or off for the current CoMM.
+     */
+    public void exitSpl_ovl(comm_grammarParser.Spl_ovlContext ctx) {
+        Boolean value = fetchBoolean(ctx.vname(), ctx.bool_lt(), ctx.getText(), ctx.start.getLine());
+        splitOverlaps = (value != null) && value;
+    }
+
+    /**
+     * Turns normalizing the sources on or off for the current CoMM.
+     */
+    public void exitNrm_src(comm_grammarParser.Nrm_srcContext ctx) {
+        Boolean value = fetchBoolean(ctx.vname(), ctx.bool_lt(), ctx.getText(), ctx.start.getLine());
+        normalize = (value != null) && value;
+    }
+
     /**
      * Finds the `CoMM <filename> [cache(cachename)];` statement, and sets the filename and cacheName variables.
      */
@@ -376,20 +615,25 @@ public class CodeGenerator extends comm_grammarBaseListener {
         }
         location.filename = ctx.VNAME().getText();
         location.cacheName = (ctx.cache() != null && ctx.cache().VNAME() != null) ? ctx.cache().VNAME().getText() : location.filename;
-        for (CommLocation cl : previousLocations) {
-            if (cl.filename.equals(location.filename)) {
-                errorStatus = true;
-                String errMsg = "line " + ctx.start.getLine() + " -  " + ctx.getText() + "\n"
-                        + "  The filename '" + location.filename + "' has already been used in this file!\n";
-                errorBuffer.append(errMsg);
-                return;
-            }
+        if (!usedFilenames.add(location.filename)) {
+            errorStatus = true;
+            String errMsg = "line " + ctx.start.getLine() + " -  " + ctx.getText() + "\n"
+                    + "  The filename '" + location.filename + "' has already been used in this file!\n";
+            errorBuffer.append(errMsg);
         }
     }
 
     /**
-     * If the Lexer or Parser found any problems, they should set the errorStatus to `true` so the bash
-     * script doesn't get run.
+     * Marks the program as having syntax errors, so the plans don't get run. The lexer or parser
+     * has already reported them.
+     */
+    void syntaxError() {
+        errorStatus = true;
+    }
+
+    /**
+     * If the Lexer or Parser found any problems, they should set the errorStatus to `true` so the plans
+     * don't get run.
      */
     public void visitErrorNode(ErrorNode node) {
         errorStatus = true;
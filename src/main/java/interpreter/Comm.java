@@ -1,95 +1,417 @@
 package interpreter;
 
 import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.*;
 
 import comm_grammar.*;
 import utils.*;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class Comm {
-    private static final String USAGE = "USAGE:\n  java -jar Comm.jar [OPTIONS] <filename.comm>\nOPTIONS:\n" +
+    private static final String USAGE = "USAGE:\n  java -jar Comm.jar [OPTIONS] <filename.comm>\n" +
+            "  java -jar Comm.jar [OPTIONS] <file.comm | directory>...\nOPTIONS:\n" +
             "  -h | --help                 Shows this usage message.\n" +
-            "  -t | --translation-only     Translates the CoMM to a bash script,\n" +
-            "                              but doesn't execute the script.\n" +
+            "  -t | --translation-only     Exports the CoMM as a bash script instead\n" +
+            "                              of running it.\n" +
+            "  -j | --download-jobs <N>    Downloads up to N videos at the same time\n" +
+            "                              (default 1). A CoMM's config.parallelDownloads()\n" +
+            "                              takes precedence.\n" +
+            "  -s | --slice-jobs <N>       Cuts up to N slices at the same time (default\n" +
+            "                              is one per processor core). A CoMM's\n" +
+            "                              config.parallelSlices() takes precedence.\n" +
+            "  -p | --pipeline             Starts slicing each video as soon as it's\n" +
+            "                              downloaded instead of waiting for all the\n" +
+            "                              downloads. A CoMM's config.pipeline() takes\n" +
+            "                              precedence.\n" +
+            "  -c | --comm-jobs <N>        Renders up to N CoMMs at the same time (default\n" +
+            "                              1, or one per processor core for a batch).\n" +
+            "                              CoMMs that share a cache still run one after\n" +
+            "                              another.\n" +
+            "  --single-pass               Renders each video in one ffmpeg pass from the\n" +
+            "                              downloaded videos, without cutting slice files.\n" +
+            "                              A CoMM's config.singlePass() takes precedence.\n" +
+            "  --preview                   Renders a quick, low-resolution proxy of each\n" +
+            "                              video (<filename>.preview.mp4) for reviewing\n" +
+            "                              the cut, instead of the full video.\n" +
+            "  --watch                     Keeps running, and renders the CoMM file again\n" +
+            "                              whenever it's saved. Only the CoMMs that\n" +
+            "                              changed are rendered, and only their new clips\n" +
+            "                              are downloaded and cut.\n" +
+            "  --retries <N>               Tries a failed download up to N more times\n" +
+            "                              (default 2).\n" +
+            "  --cache-limit <SIZE>        After running, evicts the least recently used\n" +
+            "                              videos and slices until the shared stores fit\n" +
+            "                              in SIZE (e.g. 750M or 20G).\n" +
+            "  --prometheus <FILE>         Also writes the run's metrics to FILE in the\n" +
+            "                              Prometheus text format.\n" +
+            "  --server <PORT>             Runs as a server on localhost:PORT instead,\n" +
+            "                              taking CoMM jobs over HTTP (see the README).\n" +
+            "  --workers <N>               Runs up to N server jobs at the same time\n" +
+            "                              (default 2).\n" +
+            "  --coordinator <PORT>        Hands the slice cuts (and normalizing) to render\n" +
+            "                              workers that connect on PORT, and joins the\n" +
+            "                              videos here. The workers need to share the\n" +
+            "                              comm_caches directory (see the README).\n" +
+            "  --render-worker <HOST:PORT> Runs as a render worker for the coordinator at\n" +
+            "                              HOST:PORT instead, cutting up to --slice-jobs\n" +
+            "                              slices at the same time.\n" +
             "EXAMPLE:\n" +
-            "  java -jar Comm.jar -t path/to/my/file.comm";
+            "  java -jar Comm.jar -t path/to/my/file.comm\n" +
+            "  java -jar Comm.jar -j 4 path/to/my/comm/files/";
 
-    private static String commFilename;
+    private static List<String> commFilenames = new ArrayList<>();
     private static boolean translationOnly = false;
+    private static int downloadJobs = 1;
+    private static int sliceJobs = 0;
+    private static boolean pipelined = false;
+    private static boolean singlePass = false;
+    private static boolean preview = false;
+    private static boolean watch = false;
+    private static int downloadRetries = 2;
+    private static int commJobs = 0;
+    private static long cacheLimit = -1;
+    private static File prometheusFile = null;
+    private static int serverPort = 0;
+    private static int workers = 2;
+    private static int coordinatorPort = 0;
+    private static String renderWorker = null;
 
     public static void main(String[] args) throws Exception {
         long startTime = System.currentTimeMillis();
 
         parseArguments(args);
 
-        // create a CharStream that reads from the input
-        InputStream in = getInputStream(commFilename);
-        ANTLRInputStream input = new ANTLRInputStream(in);
-
-        // create a lexer that feeds off of input CharStream
-        comm_grammarLexer lexer = new comm_grammarLexer(input);
-
-        // create a buffer of tokens pulled from the lexer
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        if (renderWorker != null) {
+            int colon = renderWorker.lastIndexOf(':');
+            int slots = (sliceJobs > 0) ? sliceJobs : Runtime.getRuntime().availableProcessors();
+            new RenderWorker(renderWorker.substring(0, colon), Integer.parseInt(renderWorker.substring(colon + 1)),
+                    slots).serve();
+            return;
+        }
+        if (translationOnly && coordinatorPort > 0) {
+            System.err.println("--coordinator can't be used with -t, since nothing is rendered.\n");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        String commFilename = commFilenames.isEmpty() ? null : commFilenames.get(0);
+        if (watch && (commFilenames.size() != 1 || !new File(commFilename).isFile() || translationOnly)) {
+            System.err.println("--watch needs exactly one CoMM file, and can't be used with -t.\n");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        RenderCoordinator coordinator = startCoordinator();
+        if (serverPort > 0) {
+            CommServer server = new CommServer(serverPort, workers, downloadRetries, commJobs(1), cacheLimit);
+            server.coordinator = coordinator;
+            server.start();
+            return;
+        }
+        if (watch) {
+            CommWatcher watcher = new CommWatcher(new File(commFilename), downloadRetries, commJobs(1), cacheLimit);
+            watcher.prometheusFile = prometheusFile;
+            watcher.coordinator = coordinator;
+            watcher.watch();
+            return;
+        }
+        if (commFilenames.size() > 1 || (commFilename != null && new File(commFilename).isDirectory())) {
+            try {
+                runBatch(BatchRunner.expand(commFilenames), startTime, coordinator);
+            } finally {
+                closeCoordinator(coordinator);
+            }
+            return;
+        }
 
-        // create a parser that feeds off the tokens buffer
-        comm_grammarParser parser = new comm_grammarParser(tokens);
+        try {
+            if (translationOnly) {
+                exportScript(getSource(commFilename));
+            } else {
+                CodeGenerator generator = translate(getSource(commFilename), true);
 
-        // create a standard ANTLR parse tree and parse tree walker
-        ParseTree tree = parser.program(); // begin parsing at program rule
-        ParseTreeWalker walker = new ParseTreeWalker();
+                // Here is where we run the plans or return errors
+                if (generator.containsErrors()) {
+                    System.err.println(generator.getErrors());
+                    System.exit(1);
+                }
+                CommLocation firstLoc = generator.previousLocations.get(0);
+                runPlans(generator.getPlans(), new File(firstLoc.cacheDir(), firstLoc.logName()), coordinator);
+                if (cacheLimit >= 0) {
+                    new CacheManager(cacheLimit).enforceBudget();
+                }
+            }
+            long timeTaken = System.currentTimeMillis() - startTime;
+            String elapsedTime = String.format("%d min, %d sec",
+                    TimeUnit.MILLISECONDS.toMinutes(timeTaken),
+                    TimeUnit.MILLISECONDS.toSeconds(timeTaken) -
+                            TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(timeTaken)));
+            System.out.println("Elapsed Time:  " + elapsedTime);
+        } catch (IOException exception) {
+            System.err.println(exception.getMessage());
+            System.exit(1);
+        } finally {
+            closeCoordinator(coordinator);
+        }
+    }
 
-        // create our custom listener, then feed to the walker
-        CodeGenerator generator = new CodeGenerator();
-        walker.walk(generator, tree);
+    // Translates the CoMM and exports it as a bash script, or returns errors. Each CoMM's commands
+    // are written out as soon as it's been read, into a temporary file that's only moved into place
+    // if the whole file translated without errors.
+    private static void exportScript(Source source) throws IOException {
+        Files.createDirectories(Paths.get(CommLocation.cachesDirectory));
+        Path partial = Paths.get(CommLocation.cachesDirectory, ".export" + System.nanoTime() + ".partial.bash");
+        CodeGenerator streaming = newGenerator(true);
+        CodeGenerator generator = streaming;
+        BashScriptWriter scriptWriter = new BashScriptWriter();
+        try (Writer out = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+            out.write(scriptWriter.header());
+            streaming.planConsumer = plan -> {
+                if (!streaming.containsErrors()) {
+                    try {
+                        scriptWriter.writePlan(plan, out);
+                    } catch (IOException exception) {
+                        throw new UncheckedIOException(exception);
+                    }
+                }
+            };
+            generator = translate(source, streaming);
+            out.write(scriptWriter.footer());
+        } catch (IOException | UncheckedIOException exception) {
+            Files.deleteIfExists(partial);
+            System.err.println("ERROR SAVING RUN SCRIPT");
+            System.err.println("  " + exception.getMessage());
+            System.exit(1);
+        }
 
-        // Here is where we save and run the script or return errors
         if (generator.containsErrors()) {
+            Files.deleteIfExists(partial);
             System.err.println(generator.getErrors());
             System.exit(1);
-        } else {
-            CommLocation firstLoc = generator.previousLocations.get(0);
-            saveToFile(firstLoc.scriptName(), firstLoc.cacheDir(), generator.getResults());
-            try {
-                if (!translationOnly) {
-                    runScript(firstLoc.cacheDir() + "/" + firstLoc.scriptName());
-                }
-                long timeTaken = System.currentTimeMillis() - startTime;
-                String elapsedTime = String.format("%d min, %d sec",
-                        TimeUnit.MILLISECONDS.toMinutes(timeTaken),
-                        TimeUnit.MILLISECONDS.toSeconds(timeTaken) -
-                                TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(timeTaken)));
-                System.out.println("Elapsed Time:  " + elapsedTime);
-            } catch (IOException exception) {
-                System.err.println(exception.getMessage());
-                System.exit(1);
+        }
+        if (generator != streaming) {
+            // The program had to be parsed again, so the plans weren't streamed
+            try (Writer out = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+                scriptWriter.write(generator.getPlans(), out);
             }
         }
+        CommLocation firstLoc = generator.previousLocations.get(0);
+        Path script = Paths.get(firstLoc.cacheDir(), firstLoc.scriptName());
+        System.out.println("[*] Saving run script to\n        " + script);
+        Files.createDirectories(script.getParent());
+        Files.move(partial, script, StandardCopyOption.REPLACE_EXISTING);
     }
 
-    private static void parseArguments(String[] args) {
-        boolean filenameFound = false;
+    /**
+     * Opens a CoMM program from the start. A program is read a second time if the fast way of
+     * parsing it fails.
+     */
+    interface Source {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Parses a CoMM program and generates its plans, using the defaults given on the command line.
+     * The returned generator holds either the plans or the errors.
+     *
+     * @param printDefinitions whether to print each video definition as it's read.
+     */
+    static CodeGenerator translate(Source source, boolean printDefinitions) throws IOException {
+        return translate(source, newGenerator(printDefinitions));
+    }
+
+    /**
+     * Returns a CodeGenerator with the defaults given on the command line.
+     *
+     * @param printDefinitions whether to print each video definition as it's read.
+     */
+    static CodeGenerator newGenerator(boolean printDefinitions) {
+        CodeGenerator generator = new CodeGenerator();
+        generator.defaultDownloadJobs = downloadJobs;
+        generator.defaultSliceJobs = sliceJobs;
+        generator.defaultPipelined = pipelined;
+        generator.defaultSinglePass = singlePass;
+        generator.preview = preview;
+        generator.printDefinitions = printDefinitions;
+        return generator;
+    }
 
-        for (String arg : args) {
+    /**
+     * Parses a CoMM program, feeding it to the given generator as it goes, and returns the
+     * generator that holds the plans or the errors.
+     *
+     * The program is streamed through the lexer and parser with SLL prediction, which is the fastest
+     * mode ANTLR has, and which gives up at the first syntax error. The grammar only needs one token
+     * of lookahead, so SLL handles every correct program. If it gives up, the program is read again
+     * from the start with full LL prediction and the usual error recovery, into a fresh copy of the
+     * generator, so the syntax errors and the generator's own errors are reported just like before.
+     */
+    static CodeGenerator translate(Source source, CodeGenerator generator) throws IOException {
+        try (InputStream in = source.open()) {
+            // create a CharStream that reads from the input a bit at a time, instead of all at once
+            CharStream input = new UnbufferedCharStream(new BufferedReader(new InputStreamReader(in)));
+
+            // create a lexer that feeds off of input CharStream. Its tokens keep a copy of their text,
+            // because the characters are thrown away once they've been read.
+            comm_grammarLexer lexer = new comm_grammarLexer(input);
+            lexer.setTokenFactory(new CommonTokenFactory(true));
+
+            // create a stream of tokens pulled from the lexer, and a parser that feeds off it
+            comm_grammarParser parser = new comm_grammarParser(new UnbufferedTokenStream<>(lexer));
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            parser.setErrorHandler(new BailOutStrategy());
+            parser.removeErrorListeners();
+            lexer.removeErrorListeners();
+            lexer.addErrorListener(new BaseErrorListener() {
+                @Override
+                public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                        int charPositionInLine, String msg, RecognitionException e) {
+                    parser.removeParseListeners();
+                    throw new ParseCancellationException(msg);
+                }
+            });
+
+            // Rather than building the whole parse tree and walking it afterwards, our custom listener
+            // hears about each rule as soon as it's parsed. Every statement has been dealt with by the
+            // time it's finished, so it's pruned from the tree right away, and the tree never grows
+            // bigger than one statement no matter how many clips the CoMM has. The pruner is added first
+            // because exit events go to the listeners in reverse order.
+            parser.addParseListener(new StatementPruner());
+            parser.addParseListener(generator);
+            parser.program(); // begin parsing at program rule
+            return generator;
+        } catch (ParseCancellationException exception) {
+            return translateWithRecovery(source, generator.freshCopy());
+        }
+    }
+
+    // Parses a CoMM program with full LL prediction, reporting and recovering from syntax errors.
+    private static CodeGenerator translateWithRecovery(Source source, CodeGenerator generator) throws IOException {
+        try (InputStream in = source.open()) {
+            comm_grammarLexer lexer = new comm_grammarLexer(new ANTLRInputStream(in));
+            comm_grammarParser parser = new comm_grammarParser(new CommonTokenStream(lexer));
+            BaseErrorListener errorMarker = new BaseErrorListener() {
+                @Override
+                public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                        int charPositionInLine, String msg, RecognitionException e) {
+                    generator.syntaxError();
+                }
+            };
+            lexer.addErrorListener(errorMarker);
+            parser.addErrorListener(errorMarker);
+            parser.setErrorHandler(new AddErrorStrategy());
+            parser.addParseListener(new StatementPruner());
+            parser.addParseListener(generator);
+            parser.program();
+            return generator;
+        }
+    }
+
+    // Translates and renders (or exports) a batch of CoMM files, and prints how each one did.
+    private static void runBatch(List<File> files, long startTime, RenderCoordinator coordinator) throws Exception {
+        if (files.isEmpty()) {
+            System.err.println("No .comm files were found.");
+            System.exit(1);
+        }
+        BatchRunner batch = new BatchRunner(files);
+        batch.translateAll();
+        if (translationOnly) {
+            System.out.println("[*] Saving run scripts to");
+            batch.exportAll();
+            return;
+        }
+
+        File log = new File(BatchRunner.runLogPath);
+        System.out.println("[*] Running the batch... Please be patient! The log is located at:\n"
+                + "        " + log.getPath());
+        TaskEngine engine = new TaskEngine(log, downloadRetries, commJobs(Runtime.getRuntime().availableProcessors()));
+        List<CommPlan> plans = batch.plans();
+        int prefetchJobs = downloadJobs;
+        for (CommPlan plan : plans) {
+            prefetchJobs = Math.max(prefetchJobs, plan.downloadJobs);
+        }
+        engine.prefetchJobs = prefetchJobs;
+        engine.prometheusFile = prometheusFile;
+        engine.coordinator = coordinator;
+        Runtime.getRuntime().addShutdownHook(new Thread(engine::cancel));
+        engine.run(plans);
+        if (cacheLimit >= 0) {
+            new CacheManager(cacheLimit).enforceBudget();
+        }
+
+        String summary = batch.summary(engine, System.currentTimeMillis() - startTime);
+        System.out.print(summary);
+        System.out.println("[*] The run report is located at:\n        " + TaskEngine.reportFile(log).getPath());
+        try (PrintWriter out = new PrintWriter(new FileWriter(log, true))) {
+            out.println();
+            out.print(summary);
+        }
+    }
+
+    // Returns the number of CoMMs to render at once: the --comm-jobs option, if it was given.
+    private static int commJobs(int fallback) {
+        return (commJobs > 0) ? commJobs : fallback;
+    }
+
+    private static void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
             if (arg.charAt(0) == '-') {
-                parseOption(arg);
-            } else if (!filenameFound) {
-                filenameFound = true;
-                commFilename = arg;
+                i = parseOption(args, i);
             } else {
-                System.err.println("UNKNOWN TOKEN: " + arg + "\n");
-                System.err.println(USAGE);
-                System.exit(1);
+                commFilenames.add(arg);
             }
         }
     }
 
-    private static void parseOption(String arg) {
+    // Handles the option at args[index] and returns the index of the last argument it used,
+    // which is further along than `index` if the option takes a value.
+    private static int parseOption(String[] args, int index) {
+        String arg = args[index];
         if (arg.equals("-t") || arg.equals("--translation-only")) {
             translationOnly = true;
+        } else if (arg.equals("-j") || arg.equals("--download-jobs")) {
+            downloadJobs = parseInt(args, ++index, 1);
+        } else if (arg.equals("-s") || arg.equals("--slice-jobs")) {
+            sliceJobs = parseInt(args, ++index, 1);
+        } else if (arg.equals("-p") || arg.equals("--pipeline")) {
+            pipelined = true;
+        } else if (arg.equals("-c") || arg.equals("--comm-jobs")) {
+            commJobs = parseInt(args, ++index, 1);
+        } else if (arg.equals("--single-pass")) {
+            singlePass = true;
+        } else if (arg.equals("--preview")) {
+            preview = true;
+        } else if (arg.equals("--watch")) {
+            watch = true;
+        } else if (arg.equals("--retries")) {
+            downloadRetries = parseInt(args, ++index, 0);
+        } else if (arg.equals("--server")) {
+            serverPort = parseInt(args, ++index, 1);
+        } else if (arg.equals("--workers")) {
+            workers = parseInt(args, ++index, 1);
+        } else if (arg.equals("--coordinator")) {
+            coordinatorPort = parseInt(args, ++index, 1);
+        } else if (arg.equals("--render-worker")) {
+            renderWorker = parseString(args, ++index);
+            if (!renderWorker.matches(".+:\\d{1,5}")) {
+                System.err.println("INVALID VALUE FOR " + arg + ": " + renderWorker + " (expected HOST:PORT)\n");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+        } else if (arg.equals("--cache-limit")) {
+            cacheLimit = parseSize(args, ++index);
+        } else if (arg.equals("--prometheus")) {
+            prometheusFile = new File(parseString(args, ++index));
         } else if (arg.equals("-h") || arg.equals("--help")) {
             System.out.println(USAGE);
             System.exit(0);
@@ -98,71 +420,225 @@ public class Comm {
             System.err.println(USAGE);
             System.exit(1);
         }
+        return index;
+    }
+
+    // Returns the option value at args[index] as an integer no smaller than `minimum`, or exits
+    // with the usage message if it's missing or invalid.
+    private static int parseInt(String[] args, int index, int minimum) {
+        String option = args[index - 1];
+        try {
+            int value = Integer.parseInt(args[index]);
+            if (value >= minimum) {
+                return value;
+            }
+            System.err.println("INVALID VALUE FOR " + option + ": " + value + "\n");
+        } catch (ArrayIndexOutOfBoundsException exception) {
+            System.err.println("MISSING VALUE FOR " + option + "\n");
+        } catch (NumberFormatException exception) {
+            System.err.println("INVALID VALUE FOR " + option + ": " + args[index] + "\n");
+        }
+        System.err.println(USAGE);
+        System.exit(1);
+        return 0;
+    }
+
+    // Returns the option value at args[index], or exits with the usage message if it's missing.
+    private static String parseString(String[] args, int index) {
+        if (index < args.length) {
+            return args[index];
+        }
+        System.err.println("MISSING VALUE FOR " + args[index - 1] + "\n");
+        System.err.println(USAGE);
+        System.exit(1);
+        return null;
+    }
+
+    // Returns the option value at args[index] as a size in bytes, or exits with the usage message
+    // if it's missing or invalid.
+    private static long parseSize(String[] args, int index) {
+        String option = args[index - 1];
+        try {
+            return CacheManager.parseSize(args[index]);
+        } catch (ArrayIndexOutOfBoundsException exception) {
+            System.err.println("MISSING VALUE FOR " + option + "\n");
+        } catch (NumberFormatException exception) {
+            System.err.println("INVALID VALUE FOR " + option + ": " + args[index] + "\n");
+        }
+        System.err.println(USAGE);
+        System.exit(1);
+        return 0;
     }
 
-    private static void runScript(String pathToScript) throws IOException {
-        System.out.println("[*] Running the script... Please be patient! If necessary, you can 'cat'\n"
+    private static void runPlans(List<CommPlan> plans, File log, RenderCoordinator coordinator) throws IOException {
+        System.out.println("[*] Running the CoMM... Please be patient! If necessary, you can 'cat'\n"
                 + "    the log to the terminal to see what's happening. The logs are located at:\n"
-                + "        " + pathToScript + ".log");
-        ProcessBuilder pb = new ProcessBuilder("bash", pathToScript);
-        File log = new File(pathToScript + ".log");
-        // We delete and create it again to make sure we're not appending to an existing log file.
-        //noinspection ResultOfMethodCallIgnored
-        log.delete();
-        log = new File(pathToScript + ".log");
-        pb.redirectErrorStream(true);
-        pb.redirectOutput(ProcessBuilder.Redirect.appendTo(log));
-        Process p = pb.start();
+                + "        " + log.getPath());
+        TaskEngine engine = new TaskEngine(log, downloadRetries, commJobs(1));
+        engine.prometheusFile = prometheusFile;
+        engine.coordinator = coordinator;
+        // Stops youtube-dl and ffmpeg if the user kills the run with Ctrl-C
+        Runtime.getRuntime().addShutdownHook(new Thread(engine::cancel));
         try {
-            int exitCode = p.waitFor();
-            if (exitCode != 0) {
+            if (!engine.run(plans)) {
                 System.err.println("Completed, but with errors. See log for details.");
             }
-        } catch (InterruptedException exception) {
-            System.err.println(exception.getMessage());
-            System.exit(1);
+            System.out.println("[*] The run report is located at:\n        " + TaskEngine.reportFile(log).getPath());
         } finally {
             try {
-                // Play a sound when the script is finished running
+                // Play a sound when the run is finished
                 SoundUtils.tone(1000, 1000, 0.2);
             } catch (Exception ignored) {
             }
         }
     }
 
-    private static InputStream getInputStream(String arg) {
-        if (arg == null) {
-            System.out.println("No filename provided. Using stdin...");
-            return System.in;
+    // Starts a coordinator if --coordinator was given, and returns it (or null). It's stopped when
+    // the JVM is, if it hasn't been already.
+    private static RenderCoordinator startCoordinator() throws IOException {
+        if (coordinatorPort <= 0) {
+            return null;
+        }
+        RenderCoordinator coordinator = new RenderCoordinator(coordinatorPort);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> closeCoordinator(coordinator)));
+        System.out.println("[*] Waiting for render workers on port " + coordinatorPort);
+        return coordinator;
+    }
+
+    // Stops the coordinator (if there is one), which stops whatever its workers are still running.
+    private static void closeCoordinator(RenderCoordinator coordinator) {
+        if (coordinator == null) {
+            return;
         }
         try {
-            return new FileInputStream(arg);
+            coordinator.close();
         } catch (IOException exception) {
-            System.err.println(exception.getMessage());
-            System.exit(1);
+            System.err.println("[!] Couldn't stop the coordinator: " + exception.getMessage());
         }
-        // If all else fails...
-        return System.in;
     }
 
-    private static void saveToFile(String filename, String directory, String contents) {
-        System.out.println("[*] Saving run script to\n        " + directory + "/" + filename);
+    private static Source getSource(String arg) throws IOException {
+        if (arg == null) {
+            System.out.println("No filename provided. Using stdin...");
+            // stdin can only be read once, so it's kept in case the program has to be read again
+            ByteArrayOutputStream program = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int count = System.in.read(buffer); count >= 0; count = System.in.read(buffer)) {
+                program.write(buffer, 0, count);
+            }
+            return () -> new ByteArrayInputStream(program.toByteArray());
+        }
+        return () -> new FileInputStream(arg);
+    }
 
-        // create multiple directories at one time
-        File dir = new File(directory);
-        //noinspection ResultOfMethodCallIgnored
-        dir.mkdirs();
+    // Throws away each statement (and then each CoMM) once the listeners are done with it, so the
+    // parse tree stays small while a big CoMM file is being read.
+    private static class StatementPruner implements ParseTreeListener {
+        @Override
+        public void exitEveryRule(ParserRuleContext ctx) {
+            boolean finished = ctx instanceof comm_grammarParser.StmntContext
+                    || ctx instanceof comm_grammarParser.CommContext;
+            if (finished && ctx.getParent() != null) {
+                ctx.getParent().removeLastChild();
+            }
+        }
 
-        try {
-            PrintWriter out = new PrintWriter(directory + "/" + filename, "UTF-8");
-            out.print(contents);
-            out.close();
-        } catch (Exception exception) {
-            System.err.println("ERROR SAVING RUN SCRIPT");
-            System.err.println("  " + exception.getMessage());
-            System.err.println("\nPrinting script to terminal...\n");
-            System.out.println(contents);
-            System.exit(1);
+        @Override
+        public void enterEveryRule(ParserRuleContext ctx) {
+        }
+
+        @Override
+        public void visitTerminal(TerminalNode node) {
+        }
+
+        @Override
+        public void visitErrorNode(ErrorNode node) {
+        }
+    }
+
+    // Gives up at the first syntax error, like the BailErrorStrategy, and stops the parse listeners
+    // from hearing about the rules that are cut short on the way out.
+    private static class BailOutStrategy extends BailErrorStrategy {
+        @Override
+        public void recover(Parser recognizer, RecognitionException e) {
+            recognizer.removeParseListeners();
+            super.recover(recognizer, e);
+        }
+
+        @Override
+        public Token recoverInline(Parser recognizer) throws RecognitionException {
+            recognizer.removeParseListeners();
+            return super.recoverInline(recognizer);
+        }
+    }
+
+    // Reports a syntax error in the first four tokens of an add() ("add", "(", the url and the token
+    // after it) as "no viable alternative" at everything from "add" on, and recovers from it as if the
+    // whole statement had failed. That's how it was handled when a whole video and a range were
+    // separate rules, and the parser couldn't tell which one a statement was until the token after
+    // the url. Errors further along are handled as usual.
+    private static class AddErrorStrategy extends DefaultErrorStrategy {
+        @Override
+        public void reportError(Parser recognizer, RecognitionException e) {
+            ParserRuleContext add = recognizer.getContext();
+            if (inAddPrefix(recognizer, e.getOffendingToken())) {
+                e = new NoViableAltException(recognizer, recognizer.getInputStream(), add.start,
+                        e.getOffendingToken(), null, add);
+            }
+            super.reportError(recognizer, e);
+        }
+
+        @Override
+        public void recover(Parser recognizer, RecognitionException e) {
+            ParserRuleContext add = recognizer.getContext();
+            if (!inAddPrefix(recognizer, e.getOffendingToken())) {
+                super.recover(recognizer, e);
+                return;
+            }
+            // Skips ahead to what can follow the statement, rather than to the ';' that ends the add()
+            recognizer.setContext(add.getParent());
+            try {
+                super.recover(recognizer, e);
+            } finally {
+                recognizer.setContext(add);
+            }
+        }
+
+        // An earlier error is only over once the first tokens of an add() have all matched, since before
+        // that the statement as a whole hasn't been recognized
+        @Override
+        public void reportMatch(Parser recognizer) {
+            ParserRuleContext add = enclosingAdd(recognizer);
+            if (add == null || recognizer.getCurrentToken().getTokenIndex() >= add.start.getTokenIndex() + 3) {
+                super.reportMatch(recognizer);
+            }
+        }
+
+        // The token is neither dropped nor made up in the first tokens of an add(), so the error is
+        // reported as a whole by reportError()
+        @Override
+        protected Token singleTokenDeletion(Parser recognizer) {
+            return inAddPrefix(recognizer, recognizer.getCurrentToken()) ? null : super.singleTokenDeletion(recognizer);
+        }
+
+        @Override
+        protected boolean singleTokenInsertion(Parser recognizer) {
+            return !inAddPrefix(recognizer, recognizer.getCurrentToken()) && super.singleTokenInsertion(recognizer);
+        }
+
+        private static boolean inAddPrefix(Parser recognizer, Token token) {
+            ParserRuleContext context = recognizer.getContext();
+            return context instanceof comm_grammarParser.Add_clpContext && token != null
+                    && token.getTokenIndex() <= context.start.getTokenIndex() + 3;
+        }
+
+        // Returns the add() being parsed, if the parser is in one or in one of its arguments.
+        private static ParserRuleContext enclosingAdd(Parser recognizer) {
+            ParserRuleContext context = recognizer.getContext();
+            if (context != null && !(context instanceof comm_grammarParser.Add_clpContext)) {
+                context = context.getParent();
+            }
+            return (context instanceof comm_grammarParser.Add_clpContext) ? context : null;
         }
     }
 }
@@ -9,9 +9,9 @@ package interpreter;
  */
 class CommLocation {
     // The location for all CoMM caches.
-    private static final String cachesDirectory = "./comm_caches";
+    static final String cachesDirectory = "./comm_caches";
 
-    // Prefixes the generated bash script
+    // Prefixes the exported bash script and the run log
     private static final String scriptPrefix = "RUN_";
 
     /**
@@ -39,6 +39,13 @@ class CommLocation {
         return scriptPrefix + filename + ".bash";
     }
 
+    /**
+     * The name of the run log for this CoMM (if it's the first CoMM defined in the file).
+     */
+    String logName() {
+        return scriptPrefix + filename + ".log";
+    }
+
     /**
      * The full relative path to this CoMM's cache.
      */
@@ -0,0 +1,285 @@
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Everything needed to make the video for one CoMM definition. The CodeGenerator fills one in for
+ * each CoMM as it walks the parse tree; then either the TaskEngine runs it, or the BashScriptWriter
+ * turns it into a script.
+ */
+class CommPlan {
+    /**
+     * The output filename and cache directory.
+     */
+    CommLocation location = new CommLocation();
+
+    /**
+     * The urls to download, in the order they were first added, without duplicates.
+     */
+    List<String> downloadUrls = new ArrayList<>();
+
+    /**
+     * The slices, in the order they are joined.
+     */
+    List<Slice> slices = new ArrayList<>();
+
+    /**
+     * Set by config.noCache(). The cache directory is wiped and the CoMM's videos and slices are
+     * removed from the stores before anything runs.
+     */
+    boolean cachingDisabled = false;
+
+    /**
+     * The number of downloads that can run at once.
+     */
+    int downloadJobs = 1;
+
+    /**
+     * The number of slices that can be cut at once. Zero means one per processor core.
+     */
+    int sliceJobs = 0;
+
+    /**
+     * Whether each video's slices start as soon as it's downloaded, instead of after all the downloads.
+     */
+    boolean pipelined = false;
+
+    /**
+     * Whether slices are cut with an input-side seek and copied from a nearby keyframe when possible.
+     */
+    boolean fastSlicing = false;
+
+    /**
+     * Whether the final video is made in one ffmpeg pass straight from the cached sources. No slice
+     * files are cut; the slice list points at the sources with an in point and out point for each
+     * slice instead.
+     */
+    boolean singlePass = false;
+
+    /**
+     * Set by config.normalize(). Each source is transcoded once into a fixed profile (see
+     * Commands.normalize()) and the copy is kept in the source store, so every slice is cut by
+     * copying from a keyframe, and the final video is joined by copying too, unless it's scaled.
+     */
+    boolean normalize = false;
+
+    /**
+     * The size the video is rendered at, set by the config.scale() statements, or null to leave
+     * the videos at their own sizes.
+     */
+    FrameScale scale = null;
+
+    /**
+     * Whether this is a preview render: a quick, low-resolution proxy of the video for reviewing
+     * the cut. It's rendered in a single pass to its own file, so it never replaces the full video.
+     */
+    boolean preview = false;
+
+    /**
+     * The scale the final video is encoded at, or null if it isn't scaled.
+     */
+    FrameScale renderScale() {
+        return preview ? FrameScale.preview(scale) : scale;
+    }
+
+    /**
+     * Everything that changes how a slice gets cut. It's part of the slice store key, so changing
+     * any of these settings cuts the slices again.
+     */
+    String sliceSettings() {
+        if (normalize) {
+            return "normalized";
+        }
+        return fastSlicing ? "fast" : "precise";
+    }
+
+    /**
+     * The slices grouped by the source store digest of their url, each group in order. It's made
+     * in one pass over the slices, so it's worth keeping rather than asking for each url.
+     */
+    Map<String, List<Slice>> slicesBySource() {
+        Map<String, List<Slice>> sourceSlices = new HashMap<>();
+        for (Slice slice : slices) {
+            sourceSlices.computeIfAbsent(slice.sourceDigest(), digest -> new ArrayList<>()).add(slice);
+        }
+        return sourceSlices;
+    }
+
+    /**
+     * Each clip that repeats an earlier clip of the plan (the same part of the same video), mapped
+     * to the first one. Only the first one is cut; the repeats are links to the same stored slice.
+     */
+    Map<Slice, Slice> repeatedClips() {
+        Map<Slice, Slice> repeats = new HashMap<>();
+        Map<String, Slice> firstClips = new HashMap<>();
+        for (Slice slice : slices) {
+            if (slice.isWholeVideo()) {
+                continue;
+            }
+            Slice first = firstClips.putIfAbsent(slice.sourceDigest() + "|" + slice.start + "|" + slice.duration,
+                    slice);
+            if (first != null) {
+                repeats.put(slice, first);
+            }
+        }
+        return repeats;
+    }
+
+    /**
+     * Splits clips that overlap other clips of the same video at every point where one of them
+     * starts or ends, so each part of the video that's used more than once is a repeated clip
+     * (see repeatedClips()) and only gets cut once. The slices are numbered again, in the same
+     * order. Whole videos are left alone.
+     *
+     * Ex:
+     * add(a, "0:10", "0:20"); add(a, "0:15", "0:25");
+     * // becomes 0:10-0:15, 0:15-0:20, 0:15-0:20 (a repeat), 0:20-0:25
+     */
+    void splitOverlappingClips() {
+        // The start and end of every clip of each video. Only the clips that overlap a clip
+        // have any of these inside it.
+        Map<String, TreeSet<Integer>> cutPoints = new HashMap<>();
+        for (Slice slice : slices) {
+            if (!slice.isWholeVideo()) {
+                TreeSet<Integer> points = cutPoints.computeIfAbsent(slice.sourceDigest(), digest -> new TreeSet<>());
+                points.add(slice.start);
+                points.add(slice.start + slice.duration);
+            }
+        }
+        List<Slice> split = new ArrayList<>(slices.size());
+        for (Slice slice : slices) {
+            if (slice.isWholeVideo()) {
+                split.add(new Slice(split.size(), slice.url, slice.start, slice.duration));
+                continue;
+            }
+            int start = slice.start;
+            int end = slice.start + slice.duration;
+            for (int point : cutPoints.get(slice.sourceDigest()).subSet(start, false, end, false)) {
+                split.add(new Slice(split.size(), slice.url, start, point - start));
+                start = point;
+            }
+            split.add(new Slice(split.size(), slice.url, start, end - start));
+        }
+        slices = split;
+    }
+
+    /**
+     * The path of a slice's memoized copy in the slice store.
+     */
+    String storedSlice(Slice slice) {
+        return SliceStore.sliceFile(SliceStore.key(slice, sliceSettings()));
+    }
+
+    /**
+     * The path of the stored video the cache links to for a url: the normalized copy if the
+     * sources are normalized, or else the downloaded video.
+     */
+    String storedSource(String url) {
+        return normalize ? SourceStore.normalizedFile(url) : SourceStore.sourceFile(url);
+    }
+
+    /**
+     * The path of the link to a url's stored video inside the cache.
+     */
+    String cachedSource(String url) {
+        return location.cacheDir() + "/" + cachedSourceName(url);
+    }
+
+    /**
+     * The path of the link to a slice's stored source video inside the cache.
+     */
+    String cachedSource(Slice slice) {
+        return location.cacheDir() + "/" + cachedSourceName(slice);
+    }
+
+    /**
+     * The path of a slice inside the cache.
+     */
+    String sliceFile(Slice slice) {
+        return location.cacheDir() + "/" + slice.filename();
+    }
+
+    /**
+     * The path of the log file for downloading a url.
+     */
+    String downloadLog(String url) {
+        return location.cacheDir() + "/vid" + SourceStore.digest(url) + ".download.log";
+    }
+
+    /**
+     * The path of the log file for cutting a slice.
+     */
+    String sliceLog(Slice slice) {
+        return location.cacheDir() + "/" + slice.numberedName() + ".log";
+    }
+
+    /**
+     * The name of a url's cached video, inside the cache.
+     */
+    String cachedSourceName(String url) {
+        return "vid" + SourceStore.digest(url) + ".mkv";
+    }
+
+    /**
+     * The name of a slice's cached source video, inside the cache.
+     */
+    String cachedSourceName(Slice slice) {
+        return "vid" + slice.sourceDigest() + ".mkv";
+    }
+
+    /**
+     * The concat demuxer entry that reads a slice straight from its cached source, for single-pass
+     * rendering. A whole video has no in point or out point.
+     */
+    String singlePassEntry(Slice slice) {
+        String entry = "file '" + cachedSourceName(slice) + "'\n";
+        if (slice.isWholeVideo()) {
+            return entry;
+        }
+        return entry + "inpoint " + slice.start + "\n" + "outpoint " + (slice.start + slice.duration) + "\n";
+    }
+
+    /**
+     * The name of the file listing the slices to join, inside the cache.
+     */
+    String sliceListName() {
+        return renderName() + "_slice_list.txt";
+    }
+
+    /**
+     * The name of the final video, inside the cache.
+     */
+    String outputName() {
+        return renderName() + "." + location.extension;
+    }
+
+    /**
+     * The path of the run's journal (see StepJournal), inside the cache.
+     */
+    String journalFile() {
+        return location.cacheDir() + "/." + renderName() + ".journal";
+    }
+
+    // The name the files of this render start with. A preview's are kept apart from the full video's.
+    private String renderName() {
+        return preview ? location.filename + ".preview" : location.filename;
+    }
+
+    /**
+     * A digest of everything that changes the video the plan makes. A journal only resumes a run
+     * of the same plan, so a CoMM that's been edited since it was interrupted starts over.
+     */
+    String digest() {
+        StringBuilder text = new StringBuilder(64 + slices.size() * 64);
+        text.append(outputName()).append(' ').append(sliceSettings()).append(' ').append(singlePass)
+                .append(' ').append(cachingDisabled).append(' ').append(renderScale()).append('\n');
+        for (Slice slice : slices) {
+            text.append(slice.url).append(' ').append(slice.start).append(' ').append(slice.duration).append('\n');
+        }
+        return SourceStore.sha256(text.toString());
+    }
+}
@@ -0,0 +1,294 @@
+package interpreter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps CoMM running as a server on localhost, so each CoMM doesn't pay for starting the JVM and
+ * warming up the parser. CoMMs are submitted over HTTP, translated right away (so errors come
+ * straight back), and queued for a pool of workers that run them with the TaskEngine.
+ *
+ *     POST   /jobs                    submits the CoMM in the request body
+ *     GET    /jobs                    lists every job
+ *     GET    /jobs/<id>               shows a job's status and output videos
+ *     GET    /jobs/<id>/log           returns a job's run log
+ *     GET    /jobs/<id>/report        returns a job's run report (see RunMetrics), once it's done
+ *     GET    /jobs/<id>/outputs/<n>   returns a job's nth output video (counting from 0)
+ *     DELETE /jobs/<id>               cancels a job
+ *
+ * Ex:
+ * java -jar Comm.jar --server 8080 --workers 4
+ * curl --data-binary @reels.comm http://localhost:8080/jobs
+ */
+class CommServer {
+    // A small CoMM that's translated when the server starts, so the first real job doesn't have to
+    // warm up the lexer and parser.
+    private static final String warmUpComm = "CoMM warmUp;\n"
+            + "var clip = \"https://youtu.be/warmUp\";\n"
+            + "config.parallelDownloads(2);\n"
+            + "add(clip, \"0:01\", \"0:02\");\n"
+            + "add(clip);\n";
+
+    // Where the jobs' run logs are kept, next to the CoMM caches.
+    private static final String jobsDirectory = CommLocation.cachesDirectory + "/.jobs";
+
+    private final int port;
+    private final int downloadRetries;
+    private final int commJobs;
+    private final long cacheLimit;
+    private final ExecutorService workers;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Map<Integer, Job> jobs = new ConcurrentHashMap<>();
+
+    // Running jobs hold the read lock, and evicting from the stores takes the write lock, so a file is
+    // never evicted while a job might be using it
+    private final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+
+    /**
+     * If set, every job hands its cuts to this coordinator's render workers (see RenderCoordinator).
+     */
+    RenderCoordinator coordinator = null;
+
+    /**
+     * @param port            the localhost port to listen on.
+     * @param workers         how many jobs can run at the same time.
+     * @param downloadRetries how many more times a failed download is tried before giving up.
+     * @param commJobs        how many of a job's CoMMs can be rendered at the same time.
+     * @param cacheLimit      the disk budget for the shared stores, or -1 for no limit.
+     */
+    CommServer(int port, int workers, int downloadRetries, int commJobs, long cacheLimit) {
+        this.port = port;
+        this.downloadRetries = downloadRetries;
+        this.commJobs = commJobs;
+        this.cacheLimit = cacheLimit;
+        this.workers = Executors.newFixedThreadPool(workers);
+    }
+
+    /**
+     * Warms up the parser and starts listening. The server keeps running until the JVM is stopped,
+     * and then cancels the jobs that are still running.
+     */
+    void start() throws IOException {
+        byte[] warmUp = warmUpComm.getBytes(StandardCharsets.UTF_8);
+        Comm.translate(() -> new ByteArrayInputStream(warmUp), false);
+        Files.createDirectories(Paths.get(jobsDirectory));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/jobs", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(0);
+            for (Job job : jobs.values()) {
+                job.cancel();
+            }
+        }));
+        System.out.println("[*] Listening on http://localhost:" + port + "/jobs");
+    }
+
+    // Sends each request to the right handler.
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+            String method = exchange.getRequestMethod();
+            Job job = (path.length > 1) ? findJob(path[1]) : null;
+            if (path.length == 1 && method.equals("POST")) {
+                submit(exchange);
+            } else if (path.length == 1 && method.equals("GET")) {
+                StringBuilder list = new StringBuilder("[");
+                for (Job each : new TreeMap<>(jobs).values()) {
+                    list.append((list.length() > 1) ? ",\n" : "\n").append(each.toJson());
+                }
+                respond(exchange, 200, list.append("\n]\n").toString());
+            } else if (job == null) {
+                respond(exchange, 404, "{\"error\": \"No such job\"}\n");
+            } else if (path.length == 2 && method.equals("GET")) {
+                respond(exchange, 200, job.toJson() + "\n");
+            } else if (path.length == 2 && method.equals("DELETE")) {
+                job.cancel();
+                respond(exchange, 200, job.toJson() + "\n");
+            } else if (path.length == 3 && path[2].equals("log") && method.equals("GET")) {
+                sendFile(exchange, job.log, "text/plain; charset=utf-8");
+            } else if (path.length == 3 && path[2].equals("report") && method.equals("GET")) {
+                sendFile(exchange, TaskEngine.reportFile(job.log), "application/json; charset=utf-8");
+            } else if (path.length == 4 && path[2].equals("outputs") && method.equals("GET")) {
+                File output = job.output(path[3]);
+                if (output == null) {
+                    respond(exchange, 404, "{\"error\": \"No such output\"}\n");
+                } else {
+                    sendFile(exchange, output, "video/mp4");
+                }
+            } else {
+                respond(exchange, 405, "{\"error\": \"Unsupported request\"}\n");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Translates the CoMM in the request body and queues it, or sends back the translation errors.
+    private void submit(HttpExchange exchange) throws IOException {
+        // The body is kept in case the CoMM has to be parsed a second time to report syntax errors
+        ByteArrayOutputStream program = new ByteArrayOutputStream();
+        try (InputStream body = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            for (int count = body.read(buffer); count >= 0; count = body.read(buffer)) {
+                program.write(buffer, 0, count);
+            }
+        }
+        CodeGenerator generator = Comm.translate(() -> new ByteArrayInputStream(program.toByteArray()), false);
+        if (generator.containsErrors() || generator.getPlans().isEmpty()) {
+            String errors = generator.containsErrors() ? generator.getErrors() : "There are no CoMM definitions!";
+            respond(exchange, 400, "{\"errors\": " + Json.quote(errors) + "}\n");
+            return;
+        }
+        Job job = new Job(nextId.getAndIncrement(), generator.getPlans());
+        jobs.put(job.id, job);
+        job.future = workers.submit(job::run);
+        respond(exchange, 202, job.toJson() + "\n");
+    }
+
+    private Job findJob(String id) {
+        try {
+            return jobs.get(Integer.parseInt(id));
+        } catch (NumberFormatException exception) {
+            return null;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static void sendFile(HttpExchange exchange, File file, String contentType) throws IOException {
+        if (!file.isFile()) {
+            respond(exchange, 404, "{\"error\": \"Not there yet\"}\n");
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, file.length());
+        Files.copy(file.toPath(), exchange.getResponseBody());
+    }
+
+    private static String formatTime(long millis) {
+        return (millis == 0) ? null : new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(millis));
+    }
+
+    /**
+     * A submitted CoMM file and how far it's gotten.
+     */
+    private class Job {
+        final int id;
+        final List<CommPlan> plans;
+        final File log;
+        final long submitted = System.currentTimeMillis();
+        volatile long started = 0;
+        volatile long finished = 0;
+        volatile String status = "queued";
+        volatile TaskEngine engine;
+        volatile Future<?> future;
+
+        Job(int id, List<CommPlan> plans) {
+            this.id = id;
+            this.plans = plans;
+            this.log = new File(jobsDirectory, id + ".log");
+        }
+
+        void run() {
+            synchronized (this) {
+                if (!status.equals("queued")) {
+                    return;
+                }
+                status = "running";
+                started = System.currentTimeMillis();
+                engine = new TaskEngine(log, downloadRetries, commJobs);
+                engine.coordinator = coordinator;
+            }
+            boolean succeeded = false;
+            storeLock.readLock().lock();
+            try {
+                succeeded = engine.run(plans);
+            } catch (IOException exception) {
+                appendError(exception);
+            } finally {
+                storeLock.readLock().unlock();
+                // Eviction only runs when no other job is running. Otherwise the last one to finish does it.
+                if (cacheLimit >= 0 && storeLock.writeLock().tryLock()) {
+                    try {
+                        new CacheManager(cacheLimit).enforceBudget();
+                    } catch (IOException exception) {
+                        appendError(exception);
+                    } finally {
+                        storeLock.writeLock().unlock();
+                    }
+                }
+                synchronized (this) {
+                    if (!status.equals("cancelled")) {
+                        status = succeeded ? "succeeded" : "failed";
+                    }
+                    finished = System.currentTimeMillis();
+                }
+            }
+        }
+
+        synchronized void cancel() {
+            if (status.equals("queued") || status.equals("running")) {
+                status = "cancelled";
+                if (engine != null) {
+                    engine.cancel();
+                } else if (future != null) {
+                    future.cancel(false);
+                    finished = System.currentTimeMillis();
+                }
+            }
+        }
+
+        // Returns the nth output video, or null if there isn't one.
+        File output(String index) {
+            try {
+                CommPlan plan = plans.get(Integer.parseInt(index));
+                return new File(plan.location.cacheDir(), plan.outputName());
+            } catch (NumberFormatException | IndexOutOfBoundsException exception) {
+                return null;
+            }
+        }
+
+        private void appendError(IOException exception) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(log, true))) {
+                out.println("[!] " + exception);
+            } catch (IOException ignored) {
+            }
+        }
+
+        synchronized String toJson() {
+            StringBuilder outputs = new StringBuilder();
+            for (CommPlan plan : plans) {
+                outputs.append((outputs.length() > 0) ? ", " : "")
+                        .append(Json.quote(plan.location.cacheDir() + "/" + plan.outputName()));
+            }
+            return "{\"id\": " + id
+                    + ", \"status\": " + Json.quote(status)
+                    + ", \"submitted\": " + Json.quote(formatTime(submitted))
+                    + ", \"started\": " + Json.quote(formatTime(started))
+                    + ", \"finished\": " + Json.quote(formatTime(finished))
+                    + ", \"outputs\": [" + outputs + "]"
+                    + ", \"log\": " + Json.quote(log.getPath()) + "}";
+        }
+    }
+}
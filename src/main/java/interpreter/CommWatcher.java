@@ -0,0 +1,208 @@
+package interpreter;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps CoMM running while a CoMM file is being edited, and renders it again every time it's
+ * saved. Each new version is translated and compared with the last one that was rendered: a CoMM
+ * whose plan hasn't changed (and whose video is still there) is left alone, and the rest are run
+ * again. Downloads and cuts are only redone for what's new, since everything else is already in the
+ * source and slice stores, so an edit usually costs the new clips and the join.
+ *
+ * config.noCache() only applies to the first render. Wiping the stores on every save would throw
+ * away everything the other renders are reusing.
+ *
+ * Ex:
+ * java -jar Comm.jar --watch --preview reel.comm
+ */
+class CommWatcher {
+    // How long the file has to stay the same before it's rendered. Editors often save a file in
+    // more than one write (or write a temporary file and rename it).
+    private static final long settleMillis = 300;
+
+    private final File commFile;
+    private final int downloadRetries;
+    private final int commJobs;
+    private final long cacheLimit;
+
+    /**
+     * If set, each render also writes its metrics to this file in the Prometheus text format.
+     */
+    File prometheusFile = null;
+
+    /**
+     * If set, every render hands its cuts to this coordinator's render workers (see RenderCoordinator).
+     */
+    RenderCoordinator coordinator = null;
+
+    // The digest of each CoMM's plan the last time it was rendered, keyed by its output video
+    private final Map<String, String> renderedDigests = new HashMap<>();
+
+    // The slice store key of every clip the last time each CoMM was rendered, keyed by its output video
+    private final Map<String, Set<String>> renderedClips = new HashMap<>();
+
+    // The engine running the current render, so it can be cancelled when the JVM is stopped
+    private volatile TaskEngine engine = null;
+
+    /**
+     * @param commFile        the CoMM file to watch.
+     * @param downloadRetries how many more times a failed download is tried before giving up.
+     * @param commJobs        how many CoMMs can be rendered at the same time.
+     * @param cacheLimit      the disk budget for the shared stores, or -1 for no limit.
+     */
+    CommWatcher(File commFile, int downloadRetries, int commJobs, long cacheLimit) {
+        this.commFile = commFile;
+        this.downloadRetries = downloadRetries;
+        this.commJobs = commJobs;
+        this.cacheLimit = cacheLimit;
+    }
+
+    /**
+     * Renders the file, and then again every time it changes, until the JVM is stopped.
+     */
+    void watch() throws IOException, InterruptedException {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            TaskEngine running = engine;
+            if (running != null) {
+                running.cancel();
+            }
+        }));
+        Path path = commFile.toPath().toAbsolutePath().normalize();
+        try (WatchService watcher = path.getFileSystem().newWatchService()) {
+            path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            render(true);
+            while (true) {
+                System.out.println("[*] Watching " + commFile.getPath() + " for changes... (Ctrl-C to stop)");
+                waitForChange(watcher, path.getFileName());
+                render(false);
+            }
+        }
+    }
+
+    // Blocks until the file has been changed, and then until it's stopped changing.
+    private static void waitForChange(WatchService watcher, Path name) throws InterruptedException {
+        boolean changed = false;
+        while (!changed) {
+            changed = takeChange(watcher.take(), name);
+        }
+        // Anything else saved in the next moment is part of the same edit
+        for (WatchKey key = watcher.poll(settleMillis, TimeUnit.MILLISECONDS); key != null;
+             key = watcher.poll(settleMillis, TimeUnit.MILLISECONDS)) {
+            takeChange(key, name);
+        }
+    }
+
+    // Returns whether any of the key's events are for the file, and gets the key ready for more.
+    private static boolean takeChange(WatchKey key, Path name) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+
+    // Translates the file and renders the CoMMs that have changed since the last render.
+    private void render(boolean firstRender) throws IOException {
+        long startTime = System.currentTimeMillis();
+        CodeGenerator generator;
+        try {
+            generator = Comm.translate(() -> new FileInputStream(commFile), firstRender);
+        } catch (IOException exception) {
+            System.err.println("[!] " + exception.getMessage());
+            return;
+        }
+        if (generator.containsErrors()) {
+            System.err.println(generator.getErrors());
+            return;
+        }
+        if (generator.getPlans().isEmpty()) {
+            System.err.println("[!] There are no CoMM definitions!");
+            return;
+        }
+
+        List<CommPlan> changed = new ArrayList<>();
+        Map<CommPlan, String> digests = new HashMap<>();
+        for (CommPlan plan : generator.getPlans()) {
+            String output = plan.location.cacheDir() + "/" + plan.outputName();
+            // The plans are compared without config.noCache(), since it's dropped after the first render
+            boolean noCache = plan.cachingDisabled;
+            plan.cachingDisabled = false;
+            String digest = plan.digest();
+            plan.cachingDisabled = firstRender && noCache;
+            digests.put(plan, digest);
+            if (digest.equals(renderedDigests.get(output)) && new File(output).isFile()) {
+                System.out.println("        Unchanged: " + output);
+                continue;
+            }
+            System.out.println("        " + (firstRender ? "Rendering: " : "Changed:   ") + output
+                    + describeChanges(plan, renderedClips.get(output)));
+            changed.add(plan);
+        }
+        if (changed.isEmpty()) {
+            System.out.println("[*] Nothing to render");
+            return;
+        }
+
+        CommLocation firstLoc = changed.get(0).location;
+        File log = new File(firstLoc.cacheDir(), firstLoc.logName());
+        System.out.println("[*] Rendering... The log is located at:\n        " + log.getPath());
+        TaskEngine running = new TaskEngine(log, downloadRetries, commJobs);
+        running.prometheusFile = prometheusFile;
+        running.coordinator = coordinator;
+        engine = running;
+        try {
+            if (!running.run(changed)) {
+                System.err.println("Completed, but with errors. See log for details.");
+            }
+        } finally {
+            engine = null;
+        }
+        for (CommPlan plan : changed) {
+            String output = plan.location.cacheDir() + "/" + plan.outputName();
+            if (Boolean.TRUE.equals(running.result(plan))) {
+                renderedDigests.put(output, digests.get(plan));
+            } else {
+                // A CoMM that failed is always rendered again
+                renderedDigests.remove(output);
+            }
+            renderedClips.put(output, clipKeys(plan));
+        }
+        if (cacheLimit >= 0) {
+            new CacheManager(cacheLimit).enforceBudget();
+        }
+        System.out.println(String.format("[*] Rendered in %.1f sec",
+                (System.currentTimeMillis() - startTime) / 1000.0));
+    }
+
+    // Returns how many of the plan's clips are new since the last render, or an empty string if
+    // it hasn't been rendered before.
+    private static String describeChanges(CommPlan plan, Set<String> previousClips) {
+        if (previousClips == null) {
+            return "";
+        }
+        Set<String> clips = clipKeys(plan);
+        int added = 0;
+        for (String clip : clips) {
+            added += previousClips.contains(clip) ? 0 : 1;
+        }
+        int removed = 0;
+        for (String clip : previousClips) {
+            removed += clips.contains(clip) ? 0 : 1;
+        }
+        return " (" + added + " new clips, " + removed + " removed, " + (clips.size() - added) + " reused)";
+    }
+
+    // Returns the slice store keys of the plan's distinct clips.
+    private static Set<String> clipKeys(CommPlan plan) {
+        Set<String> keys = new HashSet<>();
+        for (Slice slice : plan.slices) {
+            keys.add(slice.isWholeVideo() ? slice.sourceDigest() : SliceStore.key(slice, plan.sliceSettings()));
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,196 @@
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the command lines for the programs that do the actual video work (youtube-dl, ffmpeg and
+ * ffprobe). The TaskEngine runs them directly and the BashScriptWriter writes them into the
+ * exported script, so both backends always run exactly the same commands.
+ */
+class Commands {
+    // Arguments made only of these characters don't need quoting in bash
+    private static final Pattern SAFE_ARGUMENT = Pattern.compile("[A-Za-z0-9_./:=,+%@-]+");
+
+    /**
+     * The youtube-dl command that downloads a url into the source store.
+     * Consider the following flags if CoMM is made public on a web server:
+     *     --max-filesize
+     *     --limit-rate
+     *     --buffer-size
+     */
+    static List<String> download(String url) {
+        // We can change this extension later if we want, but I think youtube-dl defaults to mkv,
+        // so it's faster not to recode it as something else
+        String ext = "mkv";        // (currently supported in youtube-dl: mp4|flv|ogg|webm|mkv|avi)
+        // TODO: Explain youtube-dl flags
+        return new ArrayList<>(Arrays.asList("youtube-dl", "--abort-on-error", "--no-color",
+                "--recode-video", ext, "--no-playlist", "--no-overwrites", "--no-post-overwrites",
+                "--no-cache-dir", "--newline", "--output", SourceStore.outputTemplate(url), url));
+    }
+
+    /**
+     * The frame size, frame rate and keyframe interval (in seconds) of a normalized source.
+     */
+    static final int NORMALIZED_WIDTH = 1280;
+    static final int NORMALIZED_HEIGHT = 720;
+    static final int NORMALIZED_FPS = 30;
+    static final int NORMALIZED_KEYFRAME_INTERVAL = 1;
+
+    /**
+     * The ffmpeg command that transcodes a source into the normalized profile: H.264 (yuv420p) at
+     * NORMALIZED_WIDTH x NORMALIZED_HEIGHT and NORMALIZED_FPS, fitted inside the frame with black bars,
+     * and stereo AAC at 48 kHz. A keyframe is forced at every whole second (and nowhere else), so a
+     * slice starting at any whole second can be copied without re-encoding, and slices of different
+     * sources can be joined by copying too.
+     */
+    static List<String> normalize(String source, String output) {
+        String frame = NORMALIZED_WIDTH + ":" + NORMALIZED_HEIGHT;
+        return new ArrayList<>(Arrays.asList("ffmpeg", "-i", source,
+                "-vf", "scale=" + frame + ":force_original_aspect_ratio=decrease,pad=" + frame
+                        + ":(ow-iw)/2:(oh-ih)/2,setsar=1,fps=" + NORMALIZED_FPS,
+                "-c:v", "libx264", "-preset", "veryfast", "-crf", "18", "-pix_fmt", "yuv420p",
+                "-force_key_frames", "expr:gte(t,n_forced*" + NORMALIZED_KEYFRAME_INTERVAL + ")",
+                "-sc_threshold", "0", "-c:a", "aac", "-b:a", "192k", "-ar", "48000", "-ac", "2",
+                "-y", output));
+    }
+
+    /**
+     * The ffmpeg command that cuts a slice precisely, decoding the source from the beginning.
+     */
+    static List<String> preciseSlice(String source, Slice slice, String output) {
+        return new ArrayList<>(Arrays.asList("ffmpeg", "-i", source, "-ss", String.valueOf(slice.start),
+                "-t", String.valueOf(slice.duration), "-y", output));
+    }
+
+    /**
+     * The ffmpeg command that copies a slice without re-encoding it, starting at a keyframe.
+     */
+    static List<String> copySlice(String source, String keyframe, Slice slice, String output) {
+        return new ArrayList<>(Arrays.asList("ffmpeg", "-ss", keyframe, "-i", source,
+                "-t", String.valueOf(slice.duration), "-c", "copy", "-avoid_negative_ts", "make_zero",
+                "-y", output));
+    }
+
+    /**
+     * The ffmpeg command that re-encodes a slice after seeking straight to its start time.
+     */
+    static List<String> seekSlice(String source, Slice slice, String output) {
+        return new ArrayList<>(Arrays.asList("ffmpeg", "-ss", String.valueOf(slice.start), "-i", source,
+                "-t", String.valueOf(slice.duration), "-y", output));
+    }
+
+    /**
+     * The ffprobe command that lists the "pts_time,flags" of the video packets within a second of
+     * the start time, without decoding them. Keyframes have a K in their flags.
+     */
+    static List<String> probePackets(String source, int start) {
+        String interval = Math.max(start - 1, 0) + "%" + (start + 1);
+        return new ArrayList<>(Arrays.asList("ffprobe", "-v", "error", "-select_streams", "v:0",
+                "-show_entries", "packet=pts_time,flags", "-of", "csv=p=0", "-read_intervals", interval, source));
+    }
+
+    /**
+     * The ffmpeg command that cuts a slice precisely, but only decodes from the keyframe before it.
+     * The first "-ss" seeks the input to the keyframe, and the second one drops the frames between
+     * the keyframe and the slice's start time.
+     */
+    static List<String> indexedSlice(String source, String keyframe, String offset, Slice slice, String output) {
+        return new ArrayList<>(Arrays.asList("ffmpeg", "-ss", keyframe, "-i", source, "-ss", offset,
+                "-t", String.valueOf(slice.duration), "-y", output));
+    }
+
+    /**
+     * The ffprobe command that lists the codec, type and resolution of every stream in a video
+     * (as "[STREAM]" sections of "key=value" lines), and then its duration.
+     */
+    static List<String> probeStreams(String source) {
+        return new ArrayList<>(Arrays.asList("ffprobe", "-v", "error",
+                "-show_entries", "stream=codec_name,codec_type,width,height:format=duration", source));
+    }
+
+    /**
+     * The ffprobe command that lists the "pts_time,flags" of every video packet in a video, without
+     * decoding them. Keyframes have a K in their flags.
+     */
+    static List<String> probeKeyframes(String source) {
+        return new ArrayList<>(Arrays.asList("ffprobe", "-v", "error", "-select_streams", "v:0",
+                "-show_entries", "packet=pts_time,flags", "-of", "csv=p=0", source));
+    }
+
+    /**
+     * The ffmpeg command that joins the files listed in the slice list into the output video.
+     * "-f concat" says we're concatenating the files, and "-y" forces overwrite of the output
+     * file if it already exists. The video filter (see FrameScale) is applied in the same encode,
+     * if there is one.
+     */
+    static List<String> concat(String sliceList, String videoFilter, boolean preview, String output) {
+        List<String> command = new ArrayList<>(Arrays.asList("ffmpeg", "-f", "concat", "-i", sliceList));
+        if (videoFilter != null) {
+            command.addAll(Arrays.asList("-vf", videoFilter));
+        }
+        return encode(command, preview, output);
+    }
+
+    /**
+     * The ffmpeg command that joins the files listed in the slice list by copying their packets,
+     * without decoding or encoding anything. It only works for files that share the same codecs and
+     * settings, like slices of normalized sources. The in points and out points of a single-pass
+     * slice list are used as they are, since every one of them is on a keyframe.
+     */
+    static List<String> copyConcat(String sliceList, String output) {
+        return new ArrayList<>(Arrays.asList("ffmpeg", "-f", "concat", "-i", sliceList, "-c", "copy", "-y", output));
+    }
+
+    /**
+     * The ffmpeg command that renders the output video in one pass from a slice list made of
+     * "inpoint"/"outpoint" entries. The demuxer starts each entry at the keyframe before its in
+     * point, so "-segment_time_metadata 1" tags every packet with its entry's bounds, and the
+     * select and aselect filters drop the frames outside them. That keeps the cuts exact without
+     * writing any slice files. The video filter is chained after the select filter, if there is one.
+     */
+    static List<String> singlePassConcat(String sliceList, String videoFilter, boolean preview, String output) {
+        List<String> command = new ArrayList<>(Arrays.asList("ffmpeg", "-f", "concat", "-segment_time_metadata", "1",
+                "-i", sliceList, "-vf", "select=concatdec_select" + ((videoFilter != null) ? "," + videoFilter : ""),
+                "-af", "aselect=concatdec_select,aresample=async=1"));
+        return encode(command, preview, output);
+    }
+
+    // Adds the encoder settings and the output to a join command. A preview is encoded with the
+    // quickest x264 preset at a low quality and audio bitrate, since it's only for reviewing the
+    // cut; otherwise ffmpeg's defaults for the output's format are used.
+    private static List<String> encode(List<String> command, boolean preview, String output) {
+        if (preview) {
+            command.addAll(Arrays.asList("-c:v", "libx264", "-preset", "ultrafast", "-crf", "35",
+                    "-c:a", "aac", "-b:a", "64k"));
+        }
+        command.addAll(Arrays.asList("-y", output));
+        return command;
+    }
+
+    /**
+     * Returns the command as a line of bash, quoting the arguments that need it.
+     */
+    static String toShell(List<String> command) {
+        StringBuilder line = new StringBuilder();
+        for (String arg : command) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append(quote(arg));
+        }
+        return line.toString();
+    }
+
+    /**
+     * Returns the argument quoted for bash, if it needs to be.
+     */
+    static String quote(String arg) {
+        if (SAFE_ARGUMENT.matcher(arg).matches()) {
+            return arg;
+        }
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+}
@@ -0,0 +1,161 @@
+package interpreter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The size a CoMM's video is rendered at, set by config.scale(), config.scaleByWidth() and
+ * config.scaleByHeight() (and config.preventUpscaling()), or by a preview render. It's turned into
+ * an ffmpeg video filter that's applied when the final video is encoded, so scaling never costs an
+ * extra pass. Every video in the CoMM comes out the same size: a video with other proportions is
+ * fitted inside the frame with black bars, unless the proportions are being ignored.
+ *
+ * Some sizes depend on the videos themselves (the height for config.scaleByWidth(), the width for
+ * config.scaleByHeight(), and the frame that config.preventUpscaling(true) shrinks to fit the
+ * smallest video), so the frame is worked out from the resolutions of the sources right before
+ * the video is joined.
+ */
+class FrameScale {
+    /**
+     * The height of a preview render, unless the CoMM's own frame is already smaller.
+     */
+    static final int PREVIEW_HEIGHT = 360;
+
+    /**
+     * The frame's width and height. A zero is worked out from the sources, in proportion to the
+     * widest (or tallest) of them.
+     */
+    final int width;
+    final int height;
+
+    /**
+     * Whether each video keeps its proportions, with black bars around it, instead of being
+     * stretched to fill the frame.
+     */
+    final boolean keepProportions;
+
+    /**
+     * Set by config.preventUpscaling(). Null means videos can be scaled up; `true` shrinks the
+     * frame until no video has to be, and `false` puts black bars around videos that would be.
+     */
+    final Boolean preventUpscaling;
+
+    /**
+     * The largest height of the frame, or 0 if there isn't one. The frame keeps its proportions
+     * when it's capped.
+     */
+    final int maxHeight;
+
+    FrameScale(int width, int height, boolean keepProportions, Boolean preventUpscaling, int maxHeight) {
+        this.width = width;
+        this.height = height;
+        this.keepProportions = keepProportions;
+        this.preventUpscaling = preventUpscaling;
+        this.maxHeight = maxHeight;
+    }
+
+    /**
+     * The scale of a preview render: the CoMM's own scale capped at PREVIEW_HEIGHT, or if the CoMM
+     * doesn't have one, PREVIEW_HEIGHT high without scaling any video up.
+     */
+    static FrameScale preview(FrameScale scale) {
+        if (scale == null) {
+            return new FrameScale(0, PREVIEW_HEIGHT, true, false, PREVIEW_HEIGHT);
+        }
+        int cap = (scale.maxHeight > 0) ? Math.min(scale.maxHeight, PREVIEW_HEIGHT) : PREVIEW_HEIGHT;
+        return new FrameScale(scale.width, scale.height, scale.keepProportions, scale.preventUpscaling, cap);
+    }
+
+    /**
+     * Whether the frame depends on the resolutions of the sources.
+     */
+    boolean needsSourceSizes() {
+        return width == 0 || height == 0 || Boolean.TRUE.equals(preventUpscaling);
+    }
+
+    /**
+     * Returns the frame's {width, height} for sources of the given {width, height} sizes. Sizes
+     * that aren't known (zero) are left out, and if none are known, a missing dimension is 16:9
+     * to the other. Both dimensions are rounded down to even numbers, which most encoders need.
+     */
+    int[] frame(List<int[]> sourceSizes) {
+        double frameWidth = width;
+        double frameHeight = height;
+        if (width == 0 || height == 0) {
+            // Proportionate to the widest (for a width) or tallest (for a height) source
+            double ratio = 0;
+            for (int[] size : sourceSizes) {
+                if (size[0] > 0 && size[1] > 0) {
+                    ratio = Math.max(ratio, (width == 0) ? (double) size[0] / size[1] : (double) size[1] / size[0]);
+                }
+            }
+            if (ratio == 0) {
+                ratio = (width == 0) ? 16.0 / 9 : 9.0 / 16;
+            }
+            if (width == 0) {
+                frameWidth = frameHeight * ratio;
+            } else {
+                frameHeight = frameWidth * ratio;
+            }
+        }
+        if (Boolean.TRUE.equals(preventUpscaling)) {
+            // The largest frame that no source has to be scaled up to fill
+            double shrink = 1;
+            for (int[] size : sourceSizes) {
+                if (size[0] > 0 && size[1] > 0) {
+                    double widthRatio = size[0] / frameWidth;
+                    double heightRatio = size[1] / frameHeight;
+                    shrink = Math.min(shrink, keepProportions ? Math.max(widthRatio, heightRatio)
+                            : Math.min(widthRatio, heightRatio));
+                }
+            }
+            frameWidth *= shrink;
+            frameHeight *= shrink;
+        }
+        if (maxHeight > 0 && frameHeight > maxHeight) {
+            frameWidth *= maxHeight / frameHeight;
+            frameHeight = maxHeight;
+        }
+        return new int[]{even(frameWidth), even(frameHeight)};
+    }
+
+    /**
+     * Returns the ffmpeg video filter that scales every frame to the given frame size. The sizes
+     * are strings so the exported script can pass shell variables in.
+     */
+    String filter(String frameWidth, String frameHeight) {
+        boolean capped = preventUpscaling != null;
+        StringBuilder filter = new StringBuilder("scale=");
+        filter.append(capped ? "'min(iw," + frameWidth + ")'" : frameWidth).append(':')
+                .append(capped ? "'min(ih," + frameHeight + ")'" : frameHeight);
+        if (keepProportions) {
+            filter.append(":force_original_aspect_ratio=decrease");
+        }
+        if (keepProportions || capped) {
+            // Centers the video in the frame, with black bars around it
+            filter.append(",pad=").append(frameWidth).append(':').append(frameHeight)
+                    .append(":(ow-iw)/2:(oh-ih)/2");
+        }
+        return filter.append(",setsar=1").toString();
+    }
+
+    /**
+     * Returns the ffmpeg video filter for the frame, when it doesn't depend on the sources.
+     */
+    String filter() {
+        int[] frame = frame(Collections.emptyList());
+        return filter(String.valueOf(frame[0]), String.valueOf(frame[1]));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%dx%d keep=%b preventUpscaling=%s max=%d", width, height,
+                keepProportions, preventUpscaling, maxHeight);
+    }
+
+    // Rounds down to an even number, and no less than 2.
+    private static int even(double size) {
+        return Math.max(2, ((int) size) & ~1);
+    }
+}
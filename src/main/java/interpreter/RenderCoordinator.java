@@ -0,0 +1,309 @@
+package interpreter;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads a run's encodes (cutting slices and normalizing sources) over render workers, which can
+ * be on other machines or be other processes on this one (see RenderWorker). Workers connect to the
+ * coordinator and are handed a command for each of their free slots. They run it in a caches
+ * directory they share with the coordinator (over NFS or the like), so only the command, its
+ * output and its exit code go over the socket, never the videos. Everything else (downloads,
+ * probes, links and the join) stays on the coordinator.
+ *
+ * A worker that disconnects, or that goes quiet for longer than deadWorkerMillis, is dropped, and
+ * the commands it was running are handed to another worker. If no worker is connected (and none
+ * has been for workerWaitMillis), commands run on the coordinator itself, so a run never gets stuck.
+ *
+ * The protocol is lines of UTF-8 text:
+ *     worker:      HELLO <slots> <token>   the token from tokenFile, which shows the worker sees
+ *                                          the same caches directory
+ *     coordinator: RUN <id> <n>            followed by the command's n arguments, one per line
+ *     worker:      LOG <id> <line>         a line of the command's output
+ *     worker:      EXIT <id> <code>        the command has finished
+ *     worker:      PING                    sent every pingMillis while the worker is connected
+ *
+ * Ex:
+ * java -jar Comm.jar --coordinator 7070 reels.comm        // on the machine with the CoMM
+ * java -jar Comm.jar --render-worker editbay:7070         // on each render box, in the shared directory
+ */
+class RenderCoordinator implements Closeable {
+    /**
+     * Where the coordinator leaves its token for the workers, in the shared caches directory.
+     */
+    static final String tokenFile = CommLocation.cachesDirectory + "/.coordinator";
+
+    /**
+     * How often a worker says it's still there.
+     */
+    static final long pingMillis = 5000;
+
+    // How long a worker can go without saying anything before it's dropped.
+    private static final long deadWorkerMillis = 4 * pingMillis;
+
+    // How long commands wait for a worker to connect before they run on the coordinator instead.
+    private static final long workerWaitMillis = 30_000;
+
+    private final ServerSocket server;
+    private final String token = UUID.randomUUID().toString();
+    private final BlockingDeque<RemoteCommand> queue = new LinkedBlockingDeque<>();
+    private final Set<WorkerConnection> workers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    // When a worker was last connected (or the coordinator started)
+    private volatile long lastWorkerSeen = System.currentTimeMillis();
+    private volatile boolean closed = false;
+
+    /**
+     * Writes the token and starts listening for workers on the port, on every network interface.
+     */
+    RenderCoordinator(int port) throws IOException {
+        Files.createDirectories(Paths.get(CommLocation.cachesDirectory));
+        Files.write(Paths.get(tokenFile), Collections.singletonList(token), StandardCharsets.UTF_8);
+        server = new ServerSocket(port);
+        Thread acceptor = new Thread(this::acceptWorkers, "comm-coordinator");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Runs a command on a worker and returns its exit code, adding its output to the task log. The
+     * last argument is the file the command writes, which is deleted before every try, so a worker
+     * that died part way through doesn't leave anything in the way. Returns null if there's no
+     * worker to run it, in which case it has to be run here.
+     */
+    Integer run(List<String> command, TaskLogs logs, File taskLog, String tag) throws InterruptedException {
+        RemoteCommand remote = new RemoteCommand(nextId.getAndIncrement(), command, logs, taskLog, tag);
+        queue.add(remote);
+        while (true) {
+            try {
+                return remote.exitCode.get(1, TimeUnit.SECONDS);
+            } catch (TimeoutException exception) {
+                boolean waitedLongEnough = System.currentTimeMillis() - lastWorkerSeen > workerWaitMillis;
+                if ((closed || (workers.isEmpty() && waitedLongEnough)) && queue.remove(remote)) {
+                    logs.append(taskLog, "No render workers are connected, so it's running here");
+                    return null;
+                }
+            } catch (InterruptedException exception) {
+                // The run is being cancelled. If a worker already has the command, it's stopped when
+                // the coordinator is closed.
+                queue.remove(remote);
+                throw exception;
+            } catch (ExecutionException exception) {
+                // The future is only ever completed with an exit code
+                throw new IllegalStateException(exception);
+            }
+        }
+    }
+
+    /**
+     * Stops listening, disconnects the workers (which stops what they're running) and removes the token.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (WorkerConnection worker : workers) {
+            worker.drop("the coordinator is stopping");
+        }
+        Files.deleteIfExists(Paths.get(tokenFile));
+    }
+
+    private void acceptWorkers() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                Thread connection = new Thread(() -> new WorkerConnection(socket).serve(), "comm-render-worker");
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException exception) {
+                if (!closed) {
+                    System.err.println("[!] Couldn't accept a render worker: " + exception.getMessage());
+                }
+            }
+        }
+    }
+
+    // A command that's waiting for a worker, or running on one. Its output can be added to by the
+    // thread reading from its worker while another thread drops the worker, so it's synchronized.
+    private static class RemoteCommand {
+        final long id;
+        final List<String> command;
+        final TaskLogs logs;
+        final File taskLog;
+        final CompletableFuture<Integer> exitCode = new CompletableFuture<>();
+
+        // The output goes to the task log with its progress lines sampled
+        private final TaskLogs.Output output;
+
+        RemoteCommand(long id, List<String> command, TaskLogs logs, File taskLog, String tag) {
+            this.id = id;
+            this.command = command;
+            this.logs = logs;
+            this.taskLog = taskLog;
+            this.output = logs.output(taskLog, tag);
+        }
+
+        synchronized void outputLine(String line) {
+            output.line(line);
+        }
+
+        synchronized void endOutput() {
+            output.end();
+        }
+
+        Path outputFile() {
+            return Paths.get(command.get(command.size() - 1));
+        }
+    }
+
+    // The coordinator's end of a worker's connection. One thread reads what the worker says, and
+    // another hands it a command whenever it has a free slot.
+    private class WorkerConnection {
+        private final Socket socket;
+        private final String name;
+        private final Map<Long, RemoteCommand> running = new ConcurrentHashMap<>();
+        private final Semaphore freeSlots = new Semaphore(0);
+        private final AtomicBoolean alive = new AtomicBoolean(true);
+        private PrintWriter out;
+        private volatile Thread dispatcher;
+
+        WorkerConnection(Socket socket) {
+            this.socket = socket;
+            this.name = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        void serve() {
+            String reason = "it disconnected";
+            try {
+                socket.setSoTimeout((int) deadWorkerMillis);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8));
+                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                        StandardCharsets.UTF_8)));
+                // HELLO <slots> <token>
+                String[] hello = String.valueOf(in.readLine()).split(" ");
+                if (hello.length != 3 || !hello[0].equals("HELLO") || !hello[2].equals(token)) {
+                    System.err.println("[!] Turned away render worker " + name + ", since it doesn't share "
+                            + CommLocation.cachesDirectory + " with the coordinator");
+                    socket.close();
+                    return;
+                }
+                int slots = Integer.parseInt(hello[1]);
+                workers.add(this);
+                lastWorkerSeen = System.currentTimeMillis();
+                System.out.println("[*] Render worker " + name + " connected with " + slots + " slots");
+                freeSlots.release(slots);
+                dispatcher = new Thread(this::dispatch, "comm-dispatch");
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    handle(line);
+                }
+            } catch (SocketTimeoutException exception) {
+                reason = "it stopped answering";
+            } catch (IOException | RuntimeException exception) {
+                reason = "something went wrong (" + exception + ")";
+            }
+            drop(reason);
+        }
+
+        // Handles a line from the worker.
+        private void handle(String line) {
+            if (line.startsWith("LOG ")) {
+                int space = line.indexOf(' ', 4);
+                RemoteCommand remote = running.get(Long.parseLong(line.substring(4, space)));
+                if (remote != null) {
+                    remote.outputLine(line.substring(space + 1));
+                }
+            } else if (line.startsWith("EXIT ")) {
+                String[] fields = line.split(" ");
+                RemoteCommand remote = running.remove(Long.parseLong(fields[1]));
+                if (remote != null) {
+                    remote.endOutput();
+                    freeSlots.release();
+                    remote.exitCode.complete(Integer.parseInt(fields[2]));
+                }
+            }
+            // PING only keeps the connection from timing out
+        }
+
+        // Hands the worker a command whenever one of its slots is free, until it's dropped.
+        private void dispatch() {
+            try {
+                while (alive.get()) {
+                    freeSlots.acquire();
+                    RemoteCommand remote = queue.take();
+                    running.put(remote.id, remote);
+                    if (!alive.get()) {
+                        requeue(remote);
+                        return;
+                    }
+                    Files.deleteIfExists(remote.outputFile());
+                    remote.logs.append(remote.taskLog, "Running on render worker " + name);
+                    synchronized (this) {
+                        out.println("RUN " + remote.id + " " + remote.command.size());
+                        for (String arg : remote.command) {
+                            out.println(arg);
+                        }
+                        out.flush();
+                    }
+                    if (out.checkError()) {
+                        drop("the command couldn't be sent");
+                    }
+                    if (!alive.get()) {
+                        // It was dropped while the command was being sent
+                        requeue(remote);
+                    }
+                }
+            } catch (InterruptedException ignored) {
+                // The worker was dropped
+            } catch (IOException exception) {
+                drop("something went wrong (" + exception + ")");
+            }
+        }
+
+        // Disconnects the worker and hands the commands it was running to the other workers.
+        void drop(String reason) {
+            if (!alive.compareAndSet(true, false)) {
+                return;
+            }
+            workers.remove(this);
+            lastWorkerSeen = System.currentTimeMillis();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            if (dispatcher != null) {
+                dispatcher.interrupt();
+            }
+            if (!closed) {
+                System.err.println("[!] Dropped render worker " + name + ", since " + reason);
+            }
+            for (RemoteCommand remote : new ArrayList<>(running.values())) {
+                remote.endOutput();
+                remote.logs.append(remote.taskLog, "Render worker " + name + " was dropped, since " + reason
+                        + ", so the command is being run again");
+                requeue(remote);
+            }
+        }
+
+        // Puts a command this worker had back at the front of the queue, unless that's been done already.
+        private void requeue(RemoteCommand remote) {
+            if (running.remove(remote.id) != null) {
+                queue.addFirst(remote);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package interpreter;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the commands a RenderCoordinator hands it, as many at once as it has slots, and sends back
+ * their output and exit codes (see RenderCoordinator for the protocol). It has to run in a directory
+ * where the coordinator's caches directory can be found at the same relative path, since that's
+ * where the commands read their sources and write their slices. If the connection is lost, whatever
+ * it's running is stopped (the coordinator hands it to another worker) and it connects again, so a
+ * worker can be left running between renders.
+ *
+ * Ex:
+ * java -jar Comm.jar --render-worker editbay:7070 --slice-jobs 4
+ */
+class RenderWorker {
+    // How long to wait before connecting again
+    private static final long reconnectMillis = 2000;
+
+    private final String host;
+    private final int port;
+    private final int slots;
+
+    /**
+     * @param host  the machine the coordinator runs on.
+     * @param port  the port the coordinator listens on.
+     * @param slots how many commands to run at the same time.
+     */
+    RenderWorker(String host, int port, int slots) {
+        this.host = host;
+        this.port = port;
+        this.slots = slots;
+    }
+
+    /**
+     * Connects to the coordinator and runs its commands, connecting again whenever the connection
+     * is lost, until the JVM is stopped.
+     */
+    void serve() throws InterruptedException {
+        boolean announced = false;
+        while (true) {
+            try {
+                String token = readToken();
+                try (Socket socket = new Socket(host, port)) {
+                    System.out.println("[*] Connected to the coordinator at " + host + ":" + port + " with "
+                            + slots + " slots");
+                    announced = false;
+                    runSession(socket, token);
+                }
+                System.out.println("[*] The coordinator disconnected");
+            } catch (IOException exception) {
+                if (!announced) {
+                    System.err.println("[!] Couldn't connect to the coordinator at " + host + ":" + port + " ("
+                            + exception.getMessage() + "). Trying again until it's there...");
+                    announced = true;
+                }
+            }
+            Thread.sleep(reconnectMillis);
+        }
+    }
+
+    // Reads the coordinator's token from the shared caches directory.
+    private static String readToken() throws IOException {
+        try {
+            return new String(Files.readAllBytes(Paths.get(RenderCoordinator.tokenFile)), StandardCharsets.UTF_8)
+                    .trim();
+        } catch (NoSuchFileException exception) {
+            throw new IOException("there's no " + RenderCoordinator.tokenFile + " here. Either the coordinator "
+                    + "isn't running, or this isn't the directory that holds its " + CommLocation.cachesDirectory);
+        }
+    }
+
+    // Runs commands until the connection is lost, then stops whatever is still running.
+    private void runSession(Socket socket, String token) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                StandardCharsets.UTF_8)));
+        Map<Long, Process> processes = new ConcurrentHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(slots);
+        Thread pinger = new Thread(() -> ping(out), "comm-worker-ping");
+        pinger.setDaemon(true);
+        try {
+            send(out, "HELLO " + slots + " " + token);
+            pinger.start();
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                // RUN <id> <n>, followed by the n arguments
+                String[] fields = line.split(" ");
+                if (fields.length != 3 || !fields[0].equals("RUN")) {
+                    continue;
+                }
+                long id = Long.parseLong(fields[1]);
+                int count = Integer.parseInt(fields[2]);
+                List<String> command = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String arg = in.readLine();
+                    if (arg == null) {
+                        return;
+                    }
+                    command.add(arg);
+                }
+                pool.submit(() -> runCommand(id, command, processes, out));
+            }
+        } catch (NumberFormatException exception) {
+            throw new IOException("The coordinator sent something this worker doesn't understand", exception);
+        } finally {
+            pinger.interrupt();
+            pool.shutdownNow();
+            for (Process process : processes.values()) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    // Runs a command, sending its output a line at a time and then its exit code.
+    private static void runCommand(long id, List<String> command, Map<Long, Process> processes, PrintWriter out) {
+        System.out.println("        Running: " + command.get(command.size() - 1));
+        int exitCode;
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            processes.put(id, process);
+            process.getOutputStream().close();
+            try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                    StandardCharsets.UTF_8))) {
+                for (String line = output.readLine(); line != null; line = output.readLine()) {
+                    if (!line.isEmpty()) {
+                        send(out, "LOG " + id + " " + line);
+                    }
+                }
+            } catch (IOException ignored) {
+                // The process was stopped because the connection was lost
+            }
+            exitCode = process.waitFor();
+        } catch (IOException exception) {
+            send(out, "LOG " + id + " Couldn't run the command: " + exception.getMessage());
+            exitCode = 127;
+        } catch (InterruptedException exception) {
+            return;
+        } finally {
+            processes.remove(id);
+        }
+        send(out, "EXIT " + id + " " + exitCode);
+    }
+
+    // Tells the coordinator this worker is still there, until the session ends.
+    private static void ping(PrintWriter out) {
+        try {
+            while (true) {
+                Thread.sleep(RenderCoordinator.pingMillis);
+                send(out, "PING");
+            }
+        } catch (InterruptedException ignored) {
+            // The session is over
+        }
+    }
+
+    // Sends a line to the coordinator. The commands' threads and the pinger all share the connection.
+    private static void send(PrintWriter out, String line) {
+        synchronized (out) {
+            out.println(line);
+            out.flush();
+        }
+    }
+}
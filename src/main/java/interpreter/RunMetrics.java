@@ -0,0 +1,481 @@
+package interpreter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * What a TaskEngine run did and how long each part of it took: every download (bytes, duration,
+ * retries, and whether it was already in the source store), every slice (encode time and realtime
+ * factor, and whether it was already in the slice store), every join, and how long the downloads
+ * and slices waited for a free worker. It's written out as a JSON report after the run, and
+ * optionally in the Prometheus text format, so runs can be compared with each other over time.
+ *
+ * The records are filled in by the engine's worker threads and only read once they're finished.
+ */
+class RunMetrics {
+    /**
+     * The stored file was already there.
+     */
+    static final String HIT = "hit";
+
+    /**
+     * The stored file had to be made.
+     */
+    static final String MISS = "miss";
+
+    /**
+     * Another CoMM was already making the stored file, and this one waited for it.
+     */
+    static final String SHARED = "shared";
+
+    /**
+     * The source was downloaded at the start of the run, before any CoMM needed it.
+     */
+    static final String PREFETCHED = "prefetched";
+
+    /**
+     * A whole video, which is linked from the source store rather than cut.
+     */
+    static final String LINKED = "linked";
+
+    /**
+     * The same clip comes earlier in the CoMM, so its slice is linked to that one's instead of cut.
+     */
+    static final String REPEAT = "repeat";
+
+    private final long started = System.currentTimeMillis();
+    private volatile long finished = 0;
+
+    private final List<Download> prefetches = Collections.synchronizedList(new ArrayList<>());
+    private final Map<CommPlan, CommRun> comms = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * Starts the record of a download that was queued just now. A null plan means the download is
+     * part of the prefetch at the start of the run.
+     */
+    Download download(CommPlan plan, String url) {
+        Download download = new Download(url);
+        if (plan == null) {
+            prefetches.add(download);
+        } else {
+            comm(plan).downloads.add(download);
+        }
+        return download;
+    }
+
+    /**
+     * Starts the record of a slice whose source is ready, so it's waiting for a slice worker now.
+     */
+    SliceCut slice(CommPlan plan, Slice slice) {
+        SliceCut cut = new SliceCut(slice);
+        comm(plan).slices.add(cut);
+        return cut;
+    }
+
+    /**
+     * Returns the record of a plan, which is made the first time it's asked for. The engine asks
+     * for every plan before the run starts, so they're reported in order.
+     */
+    CommRun comm(CommPlan plan) {
+        return comms.computeIfAbsent(plan, CommRun::new);
+    }
+
+    /**
+     * Marks the end of the run.
+     */
+    void finish() {
+        finished = System.currentTimeMillis();
+    }
+
+    // #######################  RECORDS  ###########################
+
+    /**
+     * One source video that a CoMM (or the prefetch) needed.
+     */
+    static class Download {
+        final String url;
+        private final long queued = System.currentTimeMillis();
+        private long started = 0;
+        private long finished = 0;
+
+        /**
+         * Whether the video was downloaded, found in the store, or made by another CoMM. Null if it
+         * was never looked for.
+         */
+        String cache = null;
+
+        /**
+         * How many times youtube-dl was run.
+         */
+        int attempts = 0;
+
+        /**
+         * How long the video took to normalize (see config.normalize()), or 0 if it wasn't.
+         */
+        long normalizeMillis = 0;
+
+        long bytes = 0;
+        boolean succeeded = false;
+
+        private Download(String url) {
+            this.url = url;
+        }
+
+        void start() {
+            started = System.currentTimeMillis();
+        }
+
+        void finish(boolean succeeded) {
+            finished = System.currentTimeMillis();
+            this.succeeded = succeeded;
+        }
+
+        long waitMillis() {
+            return (started > 0) ? started - queued : 0;
+        }
+
+        long durationMillis() {
+            return (finished > 0 && started > 0) ? finished - started : 0;
+        }
+    }
+
+    /**
+     * One slice being cut (or linked) for a CoMM.
+     */
+    static class SliceCut {
+        final Slice slice;
+        private final long ready = System.currentTimeMillis();
+        private long started = 0;
+        private long finished = 0;
+
+        /**
+         * Whether the slice was cut, found in the store, made by another CoMM, linked, or a repeat
+         * of an earlier clip. Null if it was never made because its source video couldn't be
+         * downloaded.
+         */
+        String cache = null;
+
+        /**
+         * How it was cut: "precise", "indexed" (precise, decoding from the keyframe before it),
+         * "copy" (from a keyframe) or "seek" (re-encoded after a fast seek). Null if it wasn't cut by
+         * this CoMM.
+         */
+        String mode = null;
+
+        private long encodeMillis = 0;
+        boolean succeeded = false;
+
+        private SliceCut(Slice slice) {
+            this.slice = slice;
+        }
+
+        void start() {
+            started = System.currentTimeMillis();
+        }
+
+        /**
+         * Records how long ffmpeg took to cut the slice.
+         */
+        void encoded(long millis) {
+            encodeMillis = millis;
+        }
+
+        void finish(boolean succeeded) {
+            finished = System.currentTimeMillis();
+            this.succeeded = succeeded;
+        }
+
+        long waitMillis() {
+            return (started > 0) ? started - ready : 0;
+        }
+
+        long durationMillis() {
+            return (finished > 0 && started > 0) ? finished - started : 0;
+        }
+
+        /**
+         * Seconds of video cut per second of encoding, or 0 if it wasn't encoded by this CoMM.
+         */
+        double realtimeFactor() {
+            return (encodeMillis > 0 && !slice.isWholeVideo()) ? slice.duration * 1000.0 / encodeMillis : 0;
+        }
+    }
+
+    /**
+     * One CoMM definition and everything its run did.
+     */
+    static class CommRun {
+        final CommPlan plan;
+        private long started = 0;
+        private long finished = 0;
+        private long joinMillis = 0;
+        private long outputBytes = 0;
+        boolean succeeded = false;
+        final List<Download> downloads = Collections.synchronizedList(new ArrayList<>());
+        final List<SliceCut> slices = Collections.synchronizedList(new ArrayList<>());
+
+        private CommRun(CommPlan plan) {
+            this.plan = plan;
+        }
+
+        void start() {
+            started = System.currentTimeMillis();
+        }
+
+        /**
+         * Records how long the join took, and how big the final video is.
+         */
+        void joined(long millis, long outputBytes) {
+            this.joinMillis = millis;
+            this.outputBytes = outputBytes;
+        }
+
+        void finish(boolean succeeded) {
+            finished = System.currentTimeMillis();
+            this.succeeded = succeeded;
+        }
+    }
+
+    // #######################  REPORTS  ###########################
+
+    /**
+     * Writes the JSON report: the totals for the run, then every CoMM with its downloads, slices
+     * and join.
+     */
+    void writeJson(Writer out) throws IOException {
+        List<CommRun> comms = comms();
+        out.write("{\n");
+        out.write("  \"started\": " + Json.quote(formatTime(started)) + ",\n");
+        out.write("  \"finished\": " + Json.quote(formatTime(finished)) + ",\n");
+        out.write("  \"seconds\": " + seconds(finished - started) + ",\n");
+        out.write("  \"totals\": " + totalsJson(comms) + ",\n");
+        out.write("  \"prefetch\": [");
+        writeDownloads(out, prefetches(), "    ");
+        out.write("],\n");
+        out.write("  \"comms\": [");
+        for (int i = 0; i < comms.size(); i++) {
+            CommRun comm = comms.get(i);
+            out.write((i > 0) ? ",\n" : "\n");
+            out.write("    {\"filename\": " + Json.quote(comm.plan.outputName())
+                    + ", \"cache\": " + Json.quote(comm.plan.location.cacheDir())
+                    + ", \"succeeded\": " + comm.succeeded
+                    + ", \"seconds\": " + seconds((comm.started > 0) ? comm.finished - comm.started : 0) + ",\n");
+            out.write("     \"join\": {\"singlePass\": " + comm.plan.singlePass
+                    + ", \"seconds\": " + seconds(comm.joinMillis)
+                    + ", \"outputBytes\": " + comm.outputBytes + "},\n");
+            out.write("     \"downloads\": [");
+            writeDownloads(out, copy(comm.downloads), "       ");
+            out.write("],\n");
+            out.write("     \"slices\": [");
+            List<SliceCut> slices = copy(comm.slices);
+            slices.sort(Comparator.comparingInt(cut -> cut.slice.index));
+            for (int j = 0; j < slices.size(); j++) {
+                SliceCut cut = slices.get(j);
+                out.write((j > 0) ? ",\n       " : "\n       ");
+                out.write("{\"slice\": " + Json.quote(cut.slice.filename())
+                        + ", \"url\": " + Json.quote(cut.slice.url)
+                        + ", \"mediaSeconds\": " + (cut.slice.isWholeVideo() ? "null" : cut.slice.duration)
+                        + ", \"cache\": " + Json.quote(cut.cache)
+                        + ", \"mode\": " + Json.quote(cut.mode)
+                        + ", \"waitSeconds\": " + seconds(cut.waitMillis())
+                        + ", \"seconds\": " + seconds(cut.durationMillis())
+                        + ", \"encodeSeconds\": " + seconds(cut.encodeMillis)
+                        + ", \"realtimeFactor\": " + decimal(cut.realtimeFactor())
+                        + ", \"succeeded\": " + cut.succeeded + "}");
+            }
+            out.write(slices.isEmpty() ? "]}" : "\n     ]}");
+        }
+        out.write(comms.isEmpty() ? "]\n" : "\n  ]\n");
+        out.write("}\n");
+    }
+
+    private static void writeDownloads(Writer out, List<Download> downloads, String indent) throws IOException {
+        for (int i = 0; i < downloads.size(); i++) {
+            Download download = downloads.get(i);
+            out.write((i > 0) ? ",\n" + indent : "\n" + indent);
+            out.write("{\"url\": " + Json.quote(download.url)
+                    + ", \"cache\": " + Json.quote(download.cache)
+                    + ", \"attempts\": " + download.attempts
+                    + ", \"bytes\": " + download.bytes
+                    + ", \"waitSeconds\": " + seconds(download.waitMillis())
+                    + ", \"seconds\": " + seconds(download.durationMillis())
+                    + ", \"normalizeSeconds\": " + seconds(download.normalizeMillis)
+                    + ", \"succeeded\": " + download.succeeded + "}");
+        }
+        if (!downloads.isEmpty()) {
+            out.write("\n" + indent.substring(2));
+        }
+    }
+
+    // Returns the run's totals as one JSON object.
+    private String totalsJson(List<CommRun> comms) {
+        Totals totals = new Totals(comms, prefetches());
+        return "{\"videos\": " + comms.size()
+                + ", \"failedVideos\": " + totals.failedVideos
+                + ",\n             \"downloads\": " + totals.downloads
+                + ", \"downloadHits\": " + totals.downloadHits
+                + ", \"downloadMisses\": " + totals.downloadMisses
+                + ", \"downloadsShared\": " + totals.downloadsShared
+                + ", \"failedDownloads\": " + totals.failedDownloads
+                + ", \"downloadBytes\": " + totals.downloadBytes
+                + ", \"downloadSeconds\": " + seconds(totals.downloadMillis)
+                + ", \"downloadWaitSeconds\": " + seconds(totals.downloadWaitMillis)
+                + ",\n             \"slices\": " + totals.slices
+                + ", \"sliceHits\": " + totals.sliceHits
+                + ", \"sliceMisses\": " + totals.sliceMisses
+                + ", \"slicesShared\": " + totals.slicesShared
+                + ", \"slicesLinked\": " + totals.slicesLinked
+                + ", \"slicesRepeated\": " + totals.slicesRepeated
+                + ", \"failedSlices\": " + totals.failedSlices
+                + ", \"encodeSeconds\": " + seconds(totals.encodeMillis)
+                + ", \"encodedMediaSeconds\": " + totals.encodedMediaSeconds
+                + ", \"realtimeFactor\": " + decimal(totals.realtimeFactor())
+                + ", \"sliceWaitSeconds\": " + seconds(totals.sliceWaitMillis)
+                + ",\n             \"joinSeconds\": " + seconds(totals.joinMillis)
+                + ", \"outputBytes\": " + totals.outputBytes + "}";
+    }
+
+    /**
+     * Writes the run's totals in the Prometheus text format, for a node_exporter textfile collector
+     * or a push gateway. Everything is labelled with the run's name.
+     */
+    void writePrometheus(Writer out, String runName) throws IOException {
+        Totals totals = new Totals(comms(), prefetches());
+        String run = "run=\"" + runName.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        metric(out, "comm_run_finished_timestamp_seconds", "gauge", "When the run finished.",
+                run, seconds(finished));
+        metric(out, "comm_run_duration_seconds", "gauge", "How long the run took.",
+                run, seconds(finished - started));
+        metric(out, "comm_run_videos", "gauge", "CoMM videos in the run, by result.",
+                run + ",result=\"succeeded\"", comms.size() - totals.failedVideos,
+                run + ",result=\"failed\"", totals.failedVideos);
+        metric(out, "comm_run_downloads", "gauge", "Source videos needed, by where they came from.",
+                run + ",cache=\"hit\"", totals.downloadHits,
+                run + ",cache=\"miss\"", totals.downloadMisses,
+                run + ",cache=\"shared\"", totals.downloadsShared);
+        metric(out, "comm_run_download_failures", "gauge", "Source videos that couldn't be downloaded.",
+                run, totals.failedDownloads);
+        metric(out, "comm_run_download_bytes", "gauge", "Bytes downloaded.",
+                run, totals.downloadBytes);
+        metric(out, "comm_run_download_seconds", "gauge", "Time spent downloading.",
+                run, seconds(totals.downloadMillis));
+        metric(out, "comm_run_slices", "gauge", "Slices needed, by where they came from.",
+                run + ",cache=\"hit\"", totals.sliceHits,
+                run + ",cache=\"miss\"", totals.sliceMisses,
+                run + ",cache=\"shared\"", totals.slicesShared,
+                run + ",cache=\"linked\"", totals.slicesLinked,
+                run + ",cache=\"repeat\"", totals.slicesRepeated);
+        metric(out, "comm_run_slice_failures", "gauge", "Slices that couldn't be made.",
+                run, totals.failedSlices);
+        metric(out, "comm_run_encode_seconds", "gauge", "Time ffmpeg spent cutting slices.",
+                run, seconds(totals.encodeMillis));
+        metric(out, "comm_run_encoded_media_seconds", "gauge", "Seconds of video cut into slices.",
+                run, totals.encodedMediaSeconds);
+        metric(out, "comm_run_realtime_factor", "gauge", "Seconds of video cut per second of encoding.",
+                run, decimal(totals.realtimeFactor()));
+        metric(out, "comm_run_queue_wait_seconds", "gauge", "Time spent waiting for a free worker.",
+                run + ",stage=\"download\"", seconds(totals.downloadWaitMillis),
+                run + ",stage=\"slice\"", seconds(totals.sliceWaitMillis));
+        metric(out, "comm_run_join_seconds", "gauge", "Time spent joining the final videos.",
+                run, seconds(totals.joinMillis));
+        metric(out, "comm_run_output_bytes", "gauge", "Size of the final videos.",
+                run, totals.outputBytes);
+    }
+
+    // Writes one metric, with its help and type lines, followed by (labels, value) pairs.
+    private static void metric(Writer out, String name, String type, String help, Object... samples)
+            throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+        for (int i = 0; i < samples.length; i += 2) {
+            out.write(name + "{" + samples[i] + "} " + samples[i + 1] + "\n");
+        }
+    }
+
+    // The totals over every CoMM (and the prefetch) in the run.
+    private static class Totals {
+        int failedVideos;
+        int downloads, downloadHits, downloadMisses, downloadsShared, failedDownloads;
+        long downloadBytes, downloadMillis, downloadWaitMillis;
+        int slices, sliceHits, sliceMisses, slicesShared, slicesLinked, slicesRepeated, failedSlices;
+        long encodeMillis, encodedMediaSeconds, sliceWaitMillis;
+        long joinMillis, outputBytes;
+
+        Totals(List<CommRun> comms, List<Download> prefetches) {
+            List<Download> allDownloads = new ArrayList<>(prefetches);
+            for (CommRun comm : comms) {
+                failedVideos += comm.succeeded ? 0 : 1;
+                joinMillis += comm.joinMillis;
+                outputBytes += comm.outputBytes;
+                allDownloads.addAll(copy(comm.downloads));
+                for (SliceCut cut : copy(comm.slices)) {
+                    slices++;
+                    failedSlices += cut.succeeded ? 0 : 1;
+                    sliceWaitMillis += cut.waitMillis();
+                    if (HIT.equals(cut.cache)) {
+                        sliceHits++;
+                    } else if (MISS.equals(cut.cache)) {
+                        sliceMisses++;
+                        encodeMillis += cut.encodeMillis;
+                        encodedMediaSeconds += cut.succeeded ? cut.slice.duration : 0;
+                    } else if (LINKED.equals(cut.cache)) {
+                        slicesLinked++;
+                    } else if (SHARED.equals(cut.cache)) {
+                        slicesShared++;
+                    } else if (REPEAT.equals(cut.cache)) {
+                        slicesRepeated++;
+                    }
+                }
+            }
+            for (Download download : allDownloads) {
+                downloads++;
+                failedDownloads += download.succeeded ? 0 : 1;
+                downloadWaitMillis += download.waitMillis();
+                if (MISS.equals(download.cache)) {
+                    downloadMisses++;
+                    downloadBytes += download.bytes;
+                    downloadMillis += download.durationMillis();
+                } else if (SHARED.equals(download.cache)) {
+                    downloadsShared++;
+                } else if (download.cache != null) {
+                    // Found in the store, or already fetched by the prefetch
+                    downloadHits++;
+                }
+            }
+        }
+
+        double realtimeFactor() {
+            return (encodeMillis > 0) ? encodedMediaSeconds * 1000.0 / encodeMillis : 0;
+        }
+    }
+
+    private List<CommRun> comms() {
+        synchronized (comms) {
+            return new ArrayList<>(comms.values());
+        }
+    }
+
+    private List<Download> prefetches() {
+        return copy(prefetches);
+    }
+
+    private static <T> List<T> copy(List<T> list) {
+        synchronized (list) {
+            return new ArrayList<>(list);
+        }
+    }
+
+    private static String seconds(long millis) {
+        return decimal(Math.max(millis, 0) / 1000.0);
+    }
+
+    private static String decimal(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String formatTime(long millis) {
+        return (millis == 0) ? null : new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(millis));
+    }
+}
@@ -0,0 +1,86 @@
+package interpreter;
+
+/**
+ * One `add()` statement in a CoMM definition. Each one becomes a slice####.mkv file in the
+ * CoMM's cache, and the slices are joined in index order to make the final video.
+ *
+ * Ex:
+ * add(bananaPhone);                   // the whole video
+ * add(bananaPhone, "1:20", "1:30");   // start = 80, duration = 10
+ */
+class Slice {
+    /**
+     * The duration used when the entire video is added.
+     */
+    static final int WHOLE_VIDEO = -1;
+
+    /**
+     * The position of this slice in the final video.
+     */
+    final int index;
+
+    /**
+     * The url of the source video.
+     */
+    final String url;
+
+    /**
+     * Where the slice starts in the source video, in seconds.
+     */
+    final int start;
+
+    /**
+     * The length of the slice in seconds, or WHOLE_VIDEO.
+     */
+    final int duration;
+
+    // The source store digest of the url, worked out the first time it's needed. Big CoMMs ask
+    // for it many times per slice.
+    private volatile String sourceDigest;
+
+    Slice(int index, String url, int start, int duration) {
+        this.index = index;
+        this.url = url;
+        this.start = start;
+        this.duration = duration;
+    }
+
+    /**
+     * @return `true` if the entire source video is used; otherwise `false`.
+     */
+    boolean isWholeVideo() {
+        return duration == WHOLE_VIDEO;
+    }
+
+    /**
+     * The filename of this slice inside the CoMM's cache directory.
+     */
+    String filename() {
+        return numberedName() + ".mkv";
+    }
+
+    /**
+     * The source store digest of the slice's url.
+     */
+    String sourceDigest() {
+        String digest = sourceDigest;
+        if (digest == null) {
+            digest = SourceStore.digest(url);
+            sourceDigest = digest;
+        }
+        return digest;
+    }
+
+    /**
+     * The slice number padded to at least four digits, like `slice0042`. The log and slice files
+     * are named after it.
+     */
+    String numberedName() {
+        String number = Integer.toString(index);
+        StringBuilder name = new StringBuilder(9 + number.length()).append("slice");
+        for (int i = number.length(); i < 4; i++) {
+            name.append('0');
+        }
+        return name.append(number).toString();
+    }
+}
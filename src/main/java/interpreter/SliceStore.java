@@ -0,0 +1,39 @@
+package interpreter;
+
+/**
+ * The store of slices that have already been cut, kept between runs so that re-running a CoMM
+ * only cuts the slices that are new or have changed. A slice is stored under a key made from
+ * everything that affects its contents: the source video, the time range, and the way it was cut.
+ * The slice####.mkv files in a CoMM's cache are links to these.
+ *
+ * Ex:
+ * add(bananaPhone, "1:20", "1:30");   // stored as ./comm_caches/.slices/<key>.mkv, where the key is
+ *                                     // the digest of "<source digest>|80|10|precise"
+ */
+class SliceStore {
+    // The directory that holds the memoized slices, next to the CoMM caches.
+    private static final String storeDirectory = CommLocation.cachesDirectory + "/.slices";
+
+    /**
+     * The full relative path to the slice store.
+     */
+    static String storeDir() {
+        return storeDirectory;
+    }
+
+    /**
+     * The key for a slice cut with the given settings (anything else that changes the output, like
+     * the slicing mode).
+     */
+    static String key(Slice slice, String settings) {
+        return SourceStore.sha256(slice.sourceDigest() + "|" + slice.start + "|" + slice.duration
+                + "|" + settings);
+    }
+
+    /**
+     * The path of a memoized slice in the store.
+     */
+    static String sliceFile(String key) {
+        return storeDirectory + "/" + key + ".mkv";
+    }
+}
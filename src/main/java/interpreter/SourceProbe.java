@@ -0,0 +1,271 @@
+package interpreter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * What ffprobe found out about a video in the source store: its duration, codecs, resolution, and
+ * the time of every keyframe. A video is probed once, right after it's downloaded, and the result is
+ * kept next to it in the store. Later runs (and translations) read it from there to check clips
+ * against the video's length and to pick cut points, without running ffprobe again.
+ *
+ * Ex:
+ * ./comm_caches/.sources/<digest>.mkv     // the video
+ * ./comm_caches/.sources/<digest>.probe   // what's known about it
+ */
+class SourceProbe {
+    /**
+     * The length of the video in seconds.
+     */
+    final double duration;
+
+    /**
+     * The codecs of the first video and audio streams, or null if there isn't one.
+     */
+    final String videoCodec;
+    final String audioCodec;
+
+    /**
+     * The resolution of the first video stream, or 0 if it isn't known.
+     */
+    final int width;
+    final int height;
+
+    // The time of every keyframe in the first video stream, in ascending order
+    private final double[] keyframes;
+
+    SourceProbe(double duration, String videoCodec, String audioCodec, int width, int height, double[] keyframes) {
+        this.duration = duration;
+        this.videoCodec = videoCodec;
+        this.audioCodec = audioCodec;
+        this.width = width;
+        this.height = height;
+        this.keyframes = keyframes;
+    }
+
+    /**
+     * The path of the probe for a url's video in the source store.
+     */
+    static String probeFile(String url) {
+        return SourceStore.outputTemplate(url) + ".probe";
+    }
+
+    /**
+     * Returns the stored probe of a url's video, or null if it hasn't been probed (or the video has
+     * been downloaded again since, or evicted).
+     */
+    static SourceProbe load(String url) {
+        Path probe = Paths.get(probeFile(url));
+        Path source = Paths.get(SourceStore.sourceFile(url));
+        Properties values = new Properties();
+        try {
+            if (!Files.isRegularFile(probe) || !Files.isRegularFile(source)
+                    || Files.getLastModifiedTime(probe).compareTo(Files.getLastModifiedTime(source)) < 0) {
+                return null;
+            }
+            try (Reader in = Files.newBufferedReader(probe, StandardCharsets.UTF_8)) {
+                values.load(in);
+            }
+            String[] times = values.getProperty("keyframes", "").split(",");
+            double[] keyframes = new double[times.length];
+            int count = 0;
+            for (String time : times) {
+                if (!time.isEmpty()) {
+                    keyframes[count++] = Double.parseDouble(time);
+                }
+            }
+            return new SourceProbe(Double.parseDouble(values.getProperty("duration")),
+                    values.getProperty("videoCodec"), values.getProperty("audioCodec"),
+                    Integer.parseInt(values.getProperty("width", "0")),
+                    Integer.parseInt(values.getProperty("height", "0")),
+                    Arrays.copyOf(keyframes, count));
+        } catch (IOException | RuntimeException exception) {
+            // A probe that can't be read is treated as missing, so the video is probed again
+            return null;
+        }
+    }
+
+    /**
+     * Makes a probe from the output of the ffprobe commands in Commands.probeStreams() and
+     * Commands.probeKeyframes().
+     *
+     * @throws IllegalArgumentException if the output doesn't include the video's duration.
+     */
+    static SourceProbe parse(List<String> streams, List<String> packets) throws IllegalArgumentException {
+        double duration = -1;
+        String videoCodec = null;
+        String audioCodec = null;
+        int width = 0;
+        int height = 0;
+
+        // The streams come as "[STREAM]" sections of "key=value" lines, followed by a "[FORMAT]" one
+        Map<String, String> section = new HashMap<>();
+        for (String line : streams) {
+            if (line.equals("[/STREAM]")) {
+                String codec = section.get("codec_name");
+                if ("video".equals(section.get("codec_type")) && videoCodec == null) {
+                    videoCodec = codec;
+                    width = parseInt(section.get("width"));
+                    height = parseInt(section.get("height"));
+                } else if ("audio".equals(section.get("codec_type")) && audioCodec == null) {
+                    audioCodec = codec;
+                }
+                section.clear();
+            } else if (line.startsWith("duration=")) {
+                try {
+                    duration = Double.parseDouble(line.substring("duration=".length()));
+                } catch (NumberFormatException ignored) {
+                    // Streams without a known duration show up as "N/A"
+                }
+            } else if (line.contains("=")) {
+                section.put(line.substring(0, line.indexOf('=')), line.substring(line.indexOf('=') + 1));
+            }
+        }
+        if (duration < 0) {
+            throw new IllegalArgumentException("ffprobe didn't report the video's duration");
+        }
+
+        double[] keyframes = new double[64];
+        int count = 0;
+        for (String packet : packets) {
+            String[] fields = packet.split(",");
+            if (fields.length < 2 || !fields[1].contains("K")) {
+                continue;
+            }
+            try {
+                if (count == keyframes.length) {
+                    keyframes = Arrays.copyOf(keyframes, count * 2);
+                }
+                keyframes[count++] = Double.parseDouble(fields[0]);
+            } catch (NumberFormatException ignored) {
+                // Packets without a timestamp show up as "N/A"
+            }
+        }
+        keyframes = Arrays.copyOf(keyframes, count);
+        Arrays.sort(keyframes);
+        return new SourceProbe(duration, videoCodec, audioCodec, width, height, keyframes);
+    }
+
+    /**
+     * Writes the probe to its place in the source store. It's written to a partial file first, so
+     * a probe is never read half-written.
+     */
+    void save(String url) throws IOException {
+        Properties values = new Properties();
+        values.setProperty("duration", timestamp(duration));
+        if (videoCodec != null) {
+            values.setProperty("videoCodec", videoCodec);
+        }
+        if (audioCodec != null) {
+            values.setProperty("audioCodec", audioCodec);
+        }
+        values.setProperty("width", String.valueOf(width));
+        values.setProperty("height", String.valueOf(height));
+        StringBuilder times = new StringBuilder();
+        for (double keyframe : keyframes) {
+            times.append((times.length() > 0) ? "," : "").append(timestamp(keyframe));
+        }
+        values.setProperty("keyframes", times.toString());
+
+        Path probe = Paths.get(probeFile(url));
+        Path partial = Paths.get(probe + "." + System.nanoTime() + ".partial");
+        try {
+            try (Writer out = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+                values.store(out, "CoMM source probe: " + SourceStore.normalize(url));
+            }
+            Files.move(partial, probe, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Returns why the slice doesn't fit in the video, or null if it does. The end of a clip can be
+     * up to a second past the end of the video, since clip times are whole seconds.
+     */
+    String checkClip(Slice slice) {
+        if (slice.isWholeVideo()) {
+            return null;
+        }
+        if (slice.start >= duration) {
+            return "The clip starts at " + formatTime(slice.start) + ", but the video is only "
+                    + formatTime(duration) + " long!";
+        }
+        if (slice.start + slice.duration > Math.ceil(duration)) {
+            return "The clip ends at " + formatTime(slice.start + slice.duration) + ", but the video is only "
+                    + formatTime(duration) + " long!";
+        }
+        return null;
+    }
+
+    /**
+     * Returns the keyframe closest to the time, if it's within `tolerance` seconds of it;
+     * otherwise -1.
+     */
+    double keyframeNear(double time, double tolerance) {
+        int after = firstKeyframeAfter(time);
+        double best = -1;
+        double bestOffset = Double.MAX_VALUE;
+        for (int i = Math.max(after - 1, 0); i <= after && i < keyframes.length; i++) {
+            double offset = Math.abs(keyframes[i] - time);
+            if (offset <= tolerance && offset < bestOffset) {
+                best = keyframes[i];
+                bestOffset = offset;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the last keyframe at or before the time, or -1 if there isn't one.
+     */
+    double keyframeBefore(double time) {
+        int after = firstKeyframeAfter(time);
+        return (after > 0) ? keyframes[after - 1] : -1;
+    }
+
+    /**
+     * The number of keyframes in the index.
+     */
+    int keyframeCount() {
+        return keyframes.length;
+    }
+
+    // Returns the index of the first keyframe after the time (or keyframes.length if there isn't one).
+    private int firstKeyframeAfter(double time) {
+        int low = 0;
+        int high = keyframes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keyframes[middle] <= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the time the way ffmpeg takes it, in seconds with microsecond precision.
+     */
+    static String timestamp(double seconds) {
+        return String.format(Locale.ROOT, "%.6f", seconds);
+    }
+
+    // Returns the time as `minutes:seconds`, the way CoMM files write it.
+    private static String formatTime(double seconds) {
+        int whole = (int) seconds;
+        return (whole / 60) + ":" + ((whole % 60 < 10) ? "0" : "") + (whole % 60);
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return (value != null) ? Integer.parseInt(value) : 0;
+        } catch (NumberFormatException exception) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package interpreter;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The store of downloaded source videos that every CoMM cache on the machine shares. Each video is
+ * downloaded once and kept under the SHA-256 digest of its normalized url, and the CoMM caches
+ * link to it instead of keeping their own copies.
+ *
+ * Ex:
+ * "https://YouTu.be/j5C6X9vOEkU#t=5"   // normalized to "https://youtu.be/j5C6X9vOEkU"
+ *                                       // stored as ./comm_caches/.sources/<digest>.mkv
+ *
+ * A CoMM with config.normalize(true) also keeps a copy of each video transcoded into one fixed
+ * profile (see Commands.normalize()) next to it, as <digest>.normalized.mkv.
+ */
+class SourceStore {
+    // The directory that holds the source videos, next to the CoMM caches.
+    private static final String storeDirectory = CommLocation.cachesDirectory + "/.sources";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * The full relative path to the source store.
+     */
+    static String storeDir() {
+        return storeDirectory;
+    }
+
+    /**
+     * Returns the url in a canonical form, so that trivially different spellings of the same url
+     * share a store entry. The scheme and host are lower-cased, and the fragment and an empty
+     * trailing path are dropped. Anything that isn't a valid URI is only trimmed.
+     */
+    static String normalize(String url) {
+        String trimmed = url.trim();
+        try {
+            URI uri = new URI(trimmed);
+            if (uri.getScheme() == null || uri.getRawAuthority() == null) {
+                return trimmed;
+            }
+            String path = uri.getRawPath();
+            if (path == null || path.equals("/")) {
+                path = "";
+            }
+            String query = (uri.getRawQuery() != null) ? "?" + uri.getRawQuery() : "";
+            return uri.getScheme().toLowerCase() + "://" + uri.getRawAuthority().toLowerCase() + path + query;
+        } catch (URISyntaxException exception) {
+            return trimmed;
+        }
+    }
+
+    /**
+     * The hex SHA-256 digest of the normalized url, which names the video in the store.
+     */
+    static String digest(String url) {
+        return sha256(normalize(url));
+    }
+
+    /**
+     * The hex SHA-256 digest of a string.
+     */
+    static String sha256(String text) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            byte[] hash = sha.digest(text.getBytes(StandardCharsets.UTF_8));
+            // Digests are made for every slice of every CoMM, so this avoids String.format()
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException exception) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * The path youtube-dl is given as its output template (it adds the file extension itself).
+     */
+    static String outputTemplate(String url) {
+        return storeDirectory + "/" + digest(url);
+    }
+
+    /**
+     * The path of the downloaded video in the store.
+     */
+    static String sourceFile(String url) {
+        return outputTemplate(url) + ".mkv";
+    }
+
+    /**
+     * The path of the normalized copy of the video in the store.
+     */
+    static String normalizedFile(String url) {
+        return outputTemplate(url) + ".normalized.mkv";
+    }
+}
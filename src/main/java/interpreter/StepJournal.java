@@ -0,0 +1,178 @@
+package interpreter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A durable record of the steps a CoMM's run has finished, kept in the CoMM's cache directory. Every
+ * download, normalization, cut and join that does any work is written to it, along with the size and SHA-256 digest
+ * of what it made, and the journal is marked done once the whole CoMM has been made. If a run dies
+ * part way through (a network blip, an OOM kill, a reboot), the next run of the same CoMM resumes
+ * from the journal instead of starting over. config.noCache() doesn't wipe the cache and the stores
+ * again, and everything the journal lists is checked against it, so a file that was damaged is made
+ * again rather than used.
+ *
+ * The TaskEngine and the exported bash script keep the journal in the same format, so a run that
+ * was interrupted in one of them can be finished by the other.
+ *
+ *     plan 3f1c...                                      // the digest of the CoMM's plan
+ *     download ./comm_caches/.sources/9a0e....mkv 48213 b5d4...
+ *     normalize ./comm_caches/.sources/9a0e....normalized.mkv 51007 6f2a...   // config.normalize(true)
+ *     slice ./comm_caches/.slices/77c2....mkv 1203 0c9a...
+ *     join ./comm_caches/reel/reel.mp4 98112 e41f...
+ *     done
+ */
+class StepJournal {
+    /**
+     * A source video downloaded into the source store.
+     */
+    static final String DOWNLOAD = "download";
+
+    /**
+     * A source video transcoded into its normalized copy (see Commands.normalize()).
+     */
+    static final String NORMALIZE = "normalize";
+
+    /**
+     * A slice cut into the slice store.
+     */
+    static final String SLICE = "slice";
+
+    /**
+     * The final video.
+     */
+    static final String JOIN = "join";
+
+    private final Path file;
+    private final String planLine;
+    private final boolean resuming;
+
+    // The size and digest of each finished step, keyed by "<step> <path>"
+    private final Map<String, String> steps = new ConcurrentHashMap<>();
+
+    private StepJournal(Path file, String planLine, boolean resuming) {
+        this.file = file;
+        this.planLine = planLine;
+        this.resuming = resuming;
+    }
+
+    /**
+     * Reads the plan's journal. If it's from an earlier run of the same plan that didn't finish,
+     * the run resumes from it; otherwise the run starts over with a new journal (see start()).
+     */
+    static StepJournal read(CommPlan plan) throws IOException {
+        Path file = Paths.get(plan.journalFile());
+        String planLine = "plan " + plan.digest();
+        if (!Files.isRegularFile(file)) {
+            return new StepJournal(file, planLine, false);
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(planLine) || lines.contains("done")) {
+            return new StepJournal(file, planLine, false);
+        }
+        StepJournal journal = new StepJournal(file, planLine, true);
+        for (String line : lines.subList(1, lines.size())) {
+            // "<step> <path> <size> <digest>", where the path can't have spaces in it
+            String[] fields = line.split(" ");
+            if (fields.length == 4) {
+                journal.steps.put(fields[0] + " " + fields[1], fields[2] + " " + fields[3]);
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Whether the run is resuming an earlier run that didn't finish.
+     */
+    boolean isResuming() {
+        return resuming;
+    }
+
+    /**
+     * The number of steps the earlier run finished.
+     */
+    int finishedSteps() {
+        return steps.size();
+    }
+
+    /**
+     * Starts a new journal for the run, unless it's resuming. The cache directory has to exist.
+     */
+    void start() throws IOException {
+        if (!resuming) {
+            Files.write(file, Collections.singletonList(planLine), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Returns whether the journal lists the step for the file.
+     */
+    boolean contains(String step, String path) {
+        return steps.containsKey(step + " " + path);
+    }
+
+    /**
+     * Returns whether the journal lists the step for the file, and the file still has the size and
+     * digest it had when the step finished.
+     */
+    boolean verify(String step, String path) throws IOException {
+        String expected = steps.get(step + " " + path);
+        return expected != null && Files.isRegularFile(Paths.get(path))
+                && expected.equals(fingerprint(Paths.get(path)));
+    }
+
+    /**
+     * Records a finished step. The line is forced to disk before this returns, so a step that's in
+     * the journal really did finish.
+     */
+    void record(String step, String path) throws IOException {
+        String fingerprint = fingerprint(Paths.get(path));
+        steps.put(step + " " + path, fingerprint);
+        append(step + " " + path + " " + fingerprint);
+    }
+
+    /**
+     * Marks the run as done, so the next run of the CoMM starts over.
+     */
+    void finish() throws IOException {
+        append("done");
+    }
+
+    private synchronized void append(String line) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+            channel.force(false);
+        }
+    }
+
+    // Returns "<size> <hex SHA-256 digest>" for a file, the same as the script's comm_fingerprint.
+    private static String fingerprint(Path path) throws IOException {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            long size = 0;
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = Files.newInputStream(path)) {
+                for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+                    sha.update(buffer, 0, count);
+                    size += count;
+                }
+            }
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : sha.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return size + " " + hex;
+        } catch (NoSuchAlgorithmException exception) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(exception);
+        }
+    }
+}
@@ -0,0 +1,1199 @@
+package interpreter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs CoMM plans inside the JVM. Downloads and slices are handed to fixed-size thread pools that
+ * start youtube-dl, ffmpeg and ffprobe directly, so there's no bash script, no semaphore FIFOs and
+ * no background subshells to keep track of. Each download and each slice writes to its own log,
+ * and the logs are copied into the run log in order once the CoMM is done. What each download, slice
+ * and join did, and how long it took, is written to a JSON report next to the run log.
+ *
+ * Several CoMMs can be rendered at the same time, by one engine or by several (like the server's
+ * jobs). CoMMs that share a cache directory still run one after another, and a video or slice that
+ * more than one CoMM needs at the same time is only downloaded or cut once.
+ *
+ * Ex:
+ * new TaskEngine(new File("RUN_reels.log"), 2, 4).run(generator.getPlans());
+ */
+class TaskEngine {
+    // How close a keyframe has to be to a slice's start time (in seconds) for fast slicing to copy
+    // the slice from it. It can be changed with the COMM_KEYFRAME_TOLERANCE environment variable.
+    private static final double defaultKeyframeTolerance = 0.5;
+
+    // How long to wait before retrying a failed download. It doubles with every retry.
+    private static final long retryDelayMillis = 2000;
+
+    // How many slices a CoMM can have out at once when they're cut by render workers
+    private static final int remoteSliceJobs = 64;
+
+    // The downloads into the source store and the cuts into the slice store that are in progress,
+    // keyed by the stored file. CoMMs running at the same time wait on each other's work instead of
+    // repeating it. The stores are shared by every engine in the JVM, so this is too.
+    private static final ConcurrentMap<String, CompletableFuture<Boolean>> storeTasks = new ConcurrentHashMap<>();
+
+    // A lock for each cache directory, held while a CoMM uses it. The caches are shared by every
+    // engine in the JVM, so these are too.
+    private static final ConcurrentMap<String, Object> cacheLocks = new ConcurrentHashMap<>();
+
+    private final File runLog;
+    private final int downloadRetries;
+    private final int commJobs;
+    private final double keyframeTolerance;
+
+    // The processes that are running right now, so they can be stopped if the run is cancelled
+    private final Set<Process> running = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled = false;
+
+    // Whether each plan that's been run succeeded
+    private final Map<CommPlan, Boolean> results = new ConcurrentHashMap<>();
+
+    // The sources this engine downloaded up front (see prefetchJobs), and the urls that failed
+    private final Set<String> prefetched = ConcurrentHashMap.newKeySet();
+    private final Set<String> failedPrefetches = ConcurrentHashMap.newKeySet();
+
+    // The stored files this run downloaded, normalized or cut. config.noCache() doesn't delete them
+    // again, since they're as fresh as they're going to get.
+    private final Set<String> madeThisRun = ConcurrentHashMap.newKeySet();
+
+    private PrintWriter logWriter;
+
+    // Writes the task logs in the background while the run is going (see TaskLogs)
+    private TaskLogs taskLogs;
+
+    // What the run did and how long each part took
+    private final RunMetrics metrics = new RunMetrics();
+
+    // The probes of the sources this engine has used, keyed by their digest (see SourceProbe)
+    private final Map<String, SourceProbe> probes = new ConcurrentHashMap<>();
+
+    // The journal of each plan that's been started (see StepJournal)
+    private final Map<CommPlan, StepJournal> journals = new ConcurrentHashMap<>();
+
+    // The plans with a clip that doesn't fit its video. Their slices that haven't started yet are
+    // skipped, since the plan has already failed.
+    private final Set<CommPlan> rejectedPlans = ConcurrentHashMap.newKeySet();
+
+    /**
+     * When more than zero, every distinct source the plans use is downloaded before any of the plans
+     * start, with up to this many downloads at once. The plans then only link the sources into their
+     * caches. Otherwise each plan downloads its own sources as part of the plan.
+     */
+    int prefetchJobs = 0;
+
+    /**
+     * If set, the run's metrics are also written to this file in the Prometheus text format when the
+     * run is done.
+     */
+    File prometheusFile = null;
+
+    /**
+     * If set, cuts and normalizing are handed to this coordinator's render workers instead of being
+     * run here (see RenderCoordinator).
+     */
+    RenderCoordinator coordinator = null;
+
+    /**
+     * @param runLog          where everything the run does is logged. It's replaced if it exists.
+     * @param downloadRetries how many more times a failed download is tried before giving up.
+     * @param commJobs        how many CoMMs can be rendered at the same time.
+     */
+    TaskEngine(File runLog, int downloadRetries, int commJobs) {
+        this.runLog = runLog;
+        this.downloadRetries = downloadRetries;
+        this.commJobs = commJobs;
+        this.keyframeTolerance = keyframeTolerance();
+    }
+
+    /**
+     * Runs the plans, up to `commJobs` of them at a time. Plans that share a cache directory always
+     * run one after another, in the order they were defined. A failed download or slice never stops
+     * the rest of the run; the video is joined from the slices that were made.
+     *
+     * @return `true` if everything succeeded; otherwise `false`.
+     */
+    boolean run(List<CommPlan> plans) throws IOException {
+        File logDir = runLog.getAbsoluteFile().getParentFile();
+        //noinspection ResultOfMethodCallIgnored
+        logDir.mkdirs();
+        ExecutorService commPool = Executors.newFixedThreadPool(Math.max(commJobs, 1));
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(runLog, false), StandardCharsets.UTF_8), true);
+             TaskLogs logs = new TaskLogs()) {
+            logWriter = writer;
+            taskLogs = logs;
+            for (CommPlan plan : plans) {
+                metrics.comm(plan);
+            }
+            if (prefetchJobs > 0) {
+                clearUncachedPlans(plans);
+                prefetchSources(plans);
+            }
+            List<Future<Boolean>> lanes = new ArrayList<>();
+            for (List<CommPlan> lane : lanes(plans)) {
+                lanes.add(commPool.submit(() -> runLane(lane)));
+            }
+            boolean succeeded = true;
+            for (Future<Boolean> lane : lanes) {
+                succeeded &= lane.get();
+            }
+            metrics.finish();
+            writeReports();
+            return succeeded;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof IOException) {
+                throw (IOException) exception.getCause();
+            }
+            throw new IOException(exception.getCause());
+        } finally {
+            commPool.shutdownNow();
+            logWriter = null;
+            taskLogs = null;
+        }
+    }
+
+    // Groups the plans into lanes that can run at the same time. Plans that share a cache directory
+    // are put in the same lane, since each one cleans out the cache before it starts. With only one
+    // CoMM at a time, everything goes in one lane so the plans run in the order they were defined.
+    private List<List<CommPlan>> lanes(List<CommPlan> plans) {
+        Map<String, List<CommPlan>> lanes = new LinkedHashMap<>();
+        for (CommPlan plan : plans) {
+            String key = (commJobs > 1) ? Paths.get(plan.location.cacheDir()).normalize().toString() : "";
+            lanes.computeIfAbsent(key, k -> new ArrayList<>()).add(plan);
+        }
+        return new ArrayList<>(lanes.values());
+    }
+
+    // Runs the plans in a lane one after another, and returns `true` if all of them succeeded. Each
+    // plan waits for any other engine that's using the same cache directory.
+    private boolean runLane(List<CommPlan> lane) throws IOException {
+        boolean succeeded = true;
+        for (CommPlan plan : lane) {
+            String cacheDir = Paths.get(plan.location.cacheDir()).toAbsolutePath().normalize().toString();
+            synchronized (cacheLocks.computeIfAbsent(cacheDir, key -> new Object())) {
+                if (cancelled) {
+                    return false;
+                }
+                boolean planSucceeded = runPlan(plan);
+                results.put(plan, planSucceeded);
+                succeeded &= planSucceeded;
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * The JSON report of a run, which is written next to its run log (RUN_reel.log gets
+     * RUN_reel.report.json).
+     */
+    static File reportFile(File runLog) {
+        return new File(runLog.getParentFile(), runName(runLog) + ".report.json");
+    }
+
+    // The run log's name without the .log
+    private static String runName(File runLog) {
+        return runLog.getName().replaceFirst("\\.log$", "");
+    }
+
+    // Writes the JSON report (and the Prometheus metrics, if they were asked for). A report that
+    // can't be written is noted in the run log, but doesn't fail the run.
+    private void writeReports() {
+        try (Writer out = Files.newBufferedWriter(reportFile(runLog).toPath(), StandardCharsets.UTF_8)) {
+            metrics.writeJson(out);
+        } catch (IOException exception) {
+            log(logWriter, "[!] Couldn't write the run report: " + exception);
+        }
+        if (prometheusFile == null) {
+            return;
+        }
+        try (Writer out = Files.newBufferedWriter(prometheusFile.toPath(), StandardCharsets.UTF_8)) {
+            metrics.writePrometheus(out, runName(runLog));
+        } catch (IOException exception) {
+            log(logWriter, "[!] Couldn't write the Prometheus metrics: " + exception);
+        }
+    }
+
+    /**
+     * @return whether the plan succeeded, or null if it hasn't been run (or the run was cancelled
+     * before it finished).
+     */
+    Boolean result(CommPlan plan) {
+        return results.get(plan);
+    }
+
+    // Downloads every distinct source the plans use into the source store, sharing one pool of
+    // download jobs between all of them. Each source is downloaded once, however many plans use it.
+    private void prefetchSources(List<CommPlan> plans) throws InterruptedException {
+        Map<String, String> urls = new LinkedHashMap<>();
+        for (CommPlan plan : plans) {
+            for (String url : plan.downloadUrls) {
+                urls.putIfAbsent(SourceStore.digest(url), url);
+            }
+        }
+        log(logWriter, "Downloading " + urls.size() + " distinct videos for " + plans.size() + " CoMMs");
+
+        ExecutorService downloadPool = Executors.newFixedThreadPool(prefetchJobs);
+        try {
+            Map<String, Future<Boolean>> downloads = new LinkedHashMap<>();
+            for (Map.Entry<String, String> entry : urls.entrySet()) {
+                RunMetrics.Download record = metrics.download(null, entry.getValue());
+                downloads.put(entry.getKey(),
+                        downloadPool.submit(() -> prefetch(entry.getKey(), entry.getValue(), record)));
+            }
+            for (Map.Entry<String, Future<Boolean>> download : downloads.entrySet()) {
+                File taskLog = new File(SourceStore.storeDir(), download.getKey() + ".download.log");
+                boolean downloaded;
+                try {
+                    downloaded = download.getValue().get();
+                } catch (ExecutionException exception) {
+                    downloaded = false;
+                }
+                if (!downloaded) {
+                    failedPrefetches.add(download.getKey());
+                }
+                synchronized (this) {
+                    try {
+                        copyIntoLog(logWriter, taskLog);
+                        taskLogs.reset(taskLog);
+                    } catch (IOException ignored) {
+                        // The log is only there to be copied
+                    }
+                }
+            }
+        } finally {
+            downloadPool.shutdownNow();
+        }
+    }
+
+    private boolean prefetch(String digest, String url, RunMetrics.Download record) {
+        File taskLog = new File(SourceStore.storeDir(), digest + ".download.log");
+        record.start();
+        boolean downloaded = false;
+        try {
+            Files.createDirectories(Paths.get(SourceStore.storeDir()));
+            taskLogs.reset(taskLog);
+            Path stored = Paths.get(SourceStore.sourceFile(url));
+            record.cache = RunMetrics.SHARED;
+            downloaded = once(stored, taskLog, () -> downloadSource(url, stored, taskLog, record));
+            if (downloaded) {
+                if (RunMetrics.MISS.equals(record.cache)) {
+                    // It was downloaded just now, rather than found in the store
+                    prefetched.add(stored.toString());
+                }
+                record.bytes = Files.size(stored);
+            }
+            return downloaded;
+        } catch (IOException exception) {
+            appendLine(taskLog, exception.toString());
+            return false;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            record.finish(downloaded);
+        }
+    }
+
+    /**
+     * Stops the run, killing any youtube-dl or ffmpeg processes that are still going. It's safe to
+     * call from another thread (like a shutdown hook).
+     */
+    void cancel() {
+        cancelled = true;
+        for (Process process : running) {
+            process.destroy();
+        }
+        for (Process process : running) {
+            try {
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException exception) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Downloads, slices and joins a single CoMM, and returns `true` if all of it succeeded. The
+    // CoMM's part of the run log is collected separately and written out in one piece at the end,
+    // so CoMMs running at the same time don't garble each other's logs.
+    private boolean runPlan(CommPlan plan) throws IOException {
+        StringWriter planLog = new StringWriter();
+        RunMetrics.CommRun record = metrics.comm(plan);
+        record.start();
+        boolean succeeded = false;
+        try (PrintWriter out = new PrintWriter(planLog)) {
+            succeeded = runPlan(plan, out);
+            return succeeded;
+        } finally {
+            record.finish(succeeded);
+            synchronized (this) {
+                logWriter.print(planLog);
+                logWriter.flush();
+            }
+        }
+    }
+
+    private boolean runPlan(CommPlan plan, PrintWriter out) throws IOException {
+        log(out, "");
+        log(out, "############################################");
+        log(out, "#   Filename: " + plan.location.filename);
+        log(out, "#   Cache Folder: " + plan.location.cacheName);
+        StepJournal journal = StepJournal.read(plan);
+        if (journal.isResuming()) {
+            log(out, "Resuming the run in " + plan.journalFile() + " (" + journal.finishedSteps()
+                    + " steps were already done)");
+        }
+        prepareCache(plan, out, journal.isResuming());
+        journal.start();
+        journals.put(plan, journal);
+        Map<String, List<Slice>> clips = clipsBySource(plan);
+        if (!checkStoredClips(clips, out)) {
+            return false;
+        }
+
+        ExecutorService downloadPool = Executors.newFixedThreadPool(Math.max(plan.downloadJobs, 1));
+        ExecutorService slicePool = Executors.newFixedThreadPool(sliceJobLimit(plan));
+        try {
+            Map<String, CompletableFuture<Boolean>> downloads = new LinkedHashMap<>();
+            for (String url : plan.downloadUrls) {
+                RunMetrics.Download record = metrics.download(plan, url);
+                List<Slice> sourceClips = clips.getOrDefault(SourceStore.digest(url), Collections.emptyList());
+                downloads.put(SourceStore.digest(url), CompletableFuture.supplyAsync(
+                        () -> fetchSource(plan, url, sourceClips, record), downloadPool));
+            }
+
+            // Without pipelining, nothing gets sliced until every download has either finished or failed
+            CompletableFuture<Void> allDownloads = CompletableFuture.allOf(
+                    downloads.values().toArray(new CompletableFuture<?>[0]));
+            List<CompletableFuture<Boolean>> cuts = new ArrayList<>();
+            Map<Slice, Slice> repeats = plan.repeatedClips();
+            Map<Slice, CompletableFuture<Boolean>> firstCuts = new HashMap<>();
+            // In a single pass, the join reads the slices straight from the sources
+            for (Slice slice : plan.singlePass ? Collections.<Slice>emptyList() : plan.slices) {
+                Slice first = repeats.get(slice);
+                if (first != null) {
+                    // A repeated clip doesn't take a slice worker; it's linked once the first one is cut
+                    cuts.add(firstCuts.get(first).thenApply(made -> linkRepeat(plan, slice, first, made)));
+                    continue;
+                }
+                CompletableFuture<Boolean> download = downloads.get(slice.sourceDigest());
+                CompletableFuture<Boolean> gate = plan.pipelined
+                        ? download
+                        : allDownloads.thenCompose(ignored -> download);
+                // The slice is recorded as soon as it's waiting for a slice worker
+                CompletableFuture<Boolean> cut = gate.thenApply(downloaded -> recordSlice(plan, slice, downloaded))
+                        .thenApplyAsync(record -> record.cache != null && cutSlice(plan, slice, record), slicePool);
+                firstCuts.put(slice, cut);
+                cuts.add(cut);
+            }
+
+            List<String> failedDownloads = new ArrayList<>();
+            for (String url : plan.downloadUrls) {
+                if (!downloads.get(SourceStore.digest(url)).join()) {
+                    failedDownloads.add(url);
+                }
+            }
+            List<String> failedSlices = new ArrayList<>();
+            for (int i = 0; i < cuts.size(); i++) {
+                if (!cuts.get(i).join()) {
+                    failedSlices.add(plan.slices.get(i).filename());
+                }
+            }
+
+            // The logs are copied in order, so the run log reads the same however the jobs were scheduled
+            for (String url : plan.downloadUrls) {
+                copyIntoLog(out, new File(plan.downloadLog(url)));
+            }
+            for (Slice slice : plan.slices) {
+                copyIntoLog(out, new File(plan.sliceLog(slice)));
+            }
+            reportFailures(plan, out, failedDownloads, "downloads");
+            reportFailures(plan, out, failedSlices, "slices");
+
+            boolean joined = !cancelled && joinSlices(plan, out);
+            boolean succeeded = joined && failedDownloads.isEmpty() && failedSlices.isEmpty();
+            if (succeeded) {
+                // Only a video made from every slice counts, so a partial one is made again on a rerun
+                journal.record(StepJournal.JOIN, plan.location.cacheDir() + "/" + plan.outputName());
+                journal.finish();
+            }
+            return succeeded;
+        } finally {
+            downloadPool.shutdownNow();
+            slicePool.shutdownNow();
+        }
+    }
+
+    // Returns the plan's clips (the slices that aren't whole videos), keyed by their source's digest.
+    private static Map<String, List<Slice>> clipsBySource(CommPlan plan) {
+        Map<String, List<Slice>> clips = new HashMap<>();
+        for (Slice slice : plan.slices) {
+            if (!slice.isWholeVideo()) {
+                clips.computeIfAbsent(slice.sourceDigest(), digest -> new ArrayList<>()).add(slice);
+            }
+        }
+        return clips;
+    }
+
+    // Checks the clips of every source that's already been probed, so a CoMM with a clip that
+    // doesn't fit its video fails before anything is downloaded or cut. Returns `true` if they all fit.
+    private boolean checkStoredClips(Map<String, List<Slice>> clips, PrintWriter out) {
+        boolean fits = true;
+        for (List<Slice> sourceClips : clips.values()) {
+            String url = sourceClips.get(0).url;
+            SourceProbe probe = probes.get(SourceStore.digest(url));
+            if (probe == null) {
+                probe = SourceProbe.load(url);
+            }
+            if (probe == null) {
+                continue;
+            }
+            for (Slice slice : sourceClips) {
+                String problem = probe.checkClip(slice);
+                if (problem != null) {
+                    log(out, "[!] " + slice.numberedName() + " of " + url + ": " + problem);
+                    fits = false;
+                }
+            }
+        }
+        if (!fits) {
+            log(out, "[!] Not rendering the CoMM, since some of its clips don't fit their videos");
+        }
+        return fits;
+    }
+
+    // Cleans the cache directory and creates it (and the stores) if needed. If caching is disabled,
+    // the whole cache goes, along with the CoMM's videos and slices in the stores, so they really
+    // do get downloaded and cut again (unless the run is resuming, since that was already done when
+    // the run started). Otherwise only the slices and slice list are removed; the slices are only
+    // links into the slice store, so nothing has to be cut again.
+    private void prepareCache(CommPlan plan, PrintWriter out, boolean resuming) throws IOException {
+        Path cacheDir = Paths.get(plan.location.cacheDir());
+        if (plan.cachingDisabled && !resuming) {
+            log(out, "Removing " + cacheDir + " and its stored videos and slices");
+            deleteRecursively(cacheDir);
+            deleteStoredFiles(plan);
+        } else if (Files.isDirectory(cacheDir)) {
+            if (plan.cachingDisabled) {
+                log(out, "Keeping " + cacheDir + " and its stored videos and slices, since the run is resuming");
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDir, "{slice*,*_slice_list.txt}")) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        Files.createDirectories(cacheDir);
+        Files.createDirectories(Paths.get(SourceStore.storeDir()));
+        Files.createDirectories(Paths.get(SliceStore.storeDir()));
+    }
+
+    // Removes the stored videos and slices of the plans with caching disabled (unless they're
+    // resuming), before the sources are downloaded up front. Otherwise the download would find the
+    // old video still in the store, and the plan would use it.
+    private void clearUncachedPlans(List<CommPlan> plans) throws IOException {
+        for (CommPlan plan : plans) {
+            if (plan.cachingDisabled && !StepJournal.read(plan).isResuming()) {
+                deleteStoredFiles(plan);
+            }
+        }
+    }
+
+    // Removes the plan's videos (and their normalized copies) and slices from the stores.
+    private void deleteStoredFiles(CommPlan plan) throws IOException {
+        for (String url : plan.downloadUrls) {
+            deleteStored(Paths.get(SourceStore.sourceFile(url)));
+            if (plan.normalize) {
+                deleteStored(Paths.get(SourceStore.normalizedFile(url)));
+            }
+            probes.remove(SourceStore.digest(url));
+        }
+        for (Slice slice : plan.slices) {
+            if (!slice.isWholeVideo()) {
+                deleteStored(Paths.get(plan.storedSlice(slice)));
+            }
+        }
+    }
+
+    // Removes a file from one of the stores, unless another CoMM is downloading or cutting it right
+    // now, or this run already made it. Either way it's as fresh as it's going to get.
+    private void deleteStored(Path stored) throws IOException {
+        if (madeThisRun.contains(stored.toString())) {
+            return;
+        }
+        try {
+            storeTasks.compute(stored.toString(), (key, task) -> {
+                if (task == null) {
+                    try {
+                        Files.deleteIfExists(stored);
+                    } catch (IOException exception) {
+                        throw new UncheckedIOException(exception);
+                    }
+                }
+                return task;
+            });
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+    }
+
+    // Makes sure a url is in the source store, downloading (and probing) it if it isn't, checks the
+    // plan's clips of it against the probe, and then links the stored video into the cache. If the
+    // plan normalizes its sources, the normalized copy is made (once) and linked instead.
+    private boolean fetchSource(CommPlan plan, String url, List<Slice> clips, RunMetrics.Download record) {
+        File taskLog = new File(plan.downloadLog(url));
+        record.start();
+        boolean fetched = false;
+        try {
+            taskLogs.reset(taskLog);
+            Path stored = Paths.get(SourceStore.sourceFile(url));
+            if (failedPrefetches.contains(SourceStore.digest(url))) {
+                appendLine(taskLog, "Couldn't download " + url + " (see the start of the log)");
+                return false;
+            }
+            StepJournal journal = journals.get(plan);
+            checkJournal(journal, StepJournal.DOWNLOAD, stored, taskLog);
+            record.cache = prefetched.contains(stored.toString()) ? RunMetrics.PREFETCHED : RunMetrics.SHARED;
+            if (!once(stored, taskLog, () -> downloadSource(url, stored, taskLog, record))) {
+                return false;
+            }
+            if (RunMetrics.MISS.equals(record.cache)) {
+                journal.record(StepJournal.DOWNLOAD, stored.toString());
+            }
+            record.bytes = Files.size(stored);
+            SourceProbe probe = probeSource(url, stored, taskLog);
+            if (probe != null && !checkClips(probe, clips, taskLog)) {
+                rejectedPlans.add(plan);
+                return false;
+            }
+            if (plan.normalize) {
+                Path normalized = Paths.get(SourceStore.normalizedFile(url));
+                checkJournal(journal, StepJournal.NORMALIZE, normalized, taskLog);
+                if (!once(normalized, taskLog, () -> normalizeSource(stored, normalized, taskLog, record))) {
+                    return false;
+                }
+                if (record.normalizeMillis > 0) {
+                    journal.record(StepJournal.NORMALIZE, normalized.toString());
+                }
+            }
+            fetched = link(Paths.get(plan.storedSource(url)), Paths.get(plan.cachedSource(url)), taskLog);
+            return fetched;
+        } catch (IOException exception) {
+            appendLine(taskLog, exception.toString());
+            return false;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            record.finish(fetched);
+        }
+    }
+
+    // Returns the probe of a stored source, probing it first if that hasn't been done yet. A video
+    // that can't be probed isn't an error: its clips just can't be checked, and fast slicing looks
+    // for keyframes around each cut instead.
+    private SourceProbe probeSource(String url, Path stored, File taskLog) throws IOException, InterruptedException {
+        String digest = SourceStore.digest(url);
+        SourceProbe probe = probes.get(digest);
+        if (probe == null) {
+            probe = SourceProbe.load(url);
+        }
+        if (probe == null) {
+            once(Paths.get(SourceProbe.probeFile(url)), taskLog, () -> {
+                try {
+                    List<String> streams = captureOutput(Commands.probeStreams(stored.toString()), taskLog);
+                    List<String> packets = captureOutput(Commands.probeKeyframes(stored.toString()), taskLog);
+                    SourceProbe probed = SourceProbe.parse(streams, packets);
+                    probed.save(url);
+                    appendLine(taskLog, String.format(Locale.ROOT, "Probed: %.1fs, %s/%s, %dx%d, %d keyframes",
+                            probed.duration, probed.videoCodec, probed.audioCodec, probed.width, probed.height,
+                            probed.keyframeCount()));
+                    return true;
+                } catch (IOException | IllegalArgumentException exception) {
+                    appendLine(taskLog, "Couldn't probe " + stored + ", so its clips can't be checked: "
+                            + exception.getMessage());
+                    return false;
+                }
+            });
+            probe = SourceProbe.load(url);
+        }
+        if (probe != null) {
+            probes.put(digest, probe);
+        }
+        return probe;
+    }
+
+    // Checks a source's clips against its probe, and returns `true` if they all fit in the video.
+    private boolean checkClips(SourceProbe probe, List<Slice> clips, File taskLog) {
+        boolean fits = true;
+        for (Slice slice : clips) {
+            String problem = probe.checkClip(slice);
+            if (problem != null) {
+                appendLine(taskLog, "[!] " + slice.numberedName() + ": " + problem);
+                fits = false;
+            }
+        }
+        return fits;
+    }
+
+    // Downloads a url into the source store if it isn't there yet. Failed downloads are tried again
+    // after a growing delay.
+    private boolean downloadSource(String url, Path stored, File taskLog, RunMetrics.Download record)
+            throws IOException, InterruptedException {
+        if (isNonEmptyFile(stored)) {
+            appendLine(taskLog, "Already in the source store: " + stored);
+            if (!RunMetrics.PREFETCHED.equals(record.cache)) {
+                record.cache = RunMetrics.HIT;
+            }
+            return true;
+        }
+        record.cache = RunMetrics.MISS;
+        boolean downloaded = false;
+        for (int attempt = 0; !downloaded && !cancelled; attempt++) {
+            if (attempt > 0) {
+                appendLine(taskLog, "Retrying the download (" + attempt + " of " + downloadRetries + ")");
+                Thread.sleep(retryDelayMillis << (attempt - 1));
+            }
+            record.attempts++;
+            downloaded = runCommand(Commands.download(url), taskLog, null) == 0;
+            if (attempt >= downloadRetries) {
+                break;
+            }
+        }
+        if (downloaded) {
+            madeThisRun.add(stored.toString());
+        }
+        return downloaded;
+    }
+
+    // Transcodes a stored video into its normalized copy (see Commands.normalize()), unless the store
+    // already has one that's at least as new as the video. Like a cut, it's written to a partial file
+    // that's only moved into the store once it succeeds.
+    private boolean normalizeSource(Path stored, Path normalized, File taskLog, RunMetrics.Download record)
+            throws IOException, InterruptedException {
+        if (isNonEmptyFile(normalized)
+                && Files.getLastModifiedTime(normalized).compareTo(Files.getLastModifiedTime(stored)) >= 0) {
+            appendLine(taskLog, "Already normalized: " + normalized);
+            return true;
+        }
+        Path partial = partialFile(normalized);
+        try {
+            long normalizeStart = System.currentTimeMillis();
+            if (runEncode(Commands.normalize(stored.toString(), partial.toString()), taskLog) != 0) {
+                return false;
+            }
+            record.normalizeMillis = Math.max(System.currentTimeMillis() - normalizeStart, 1);
+            Files.move(partial, normalized, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            madeThisRun.add(normalized.toString());
+            appendLine(taskLog, String.format(Locale.ROOT, "Normalized in %.1f sec", record.normalizeMillis / 1000.0));
+            return true;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    // Makes a slice in the cache. A whole video is linked straight from the source store; anything
+    // else is only cut if the slice store doesn't already have it.
+    private boolean cutSlice(CommPlan plan, Slice slice, RunMetrics.SliceCut record) {
+        File taskLog = new File(plan.sliceLog(slice));
+        Path sliceFile = Paths.get(plan.sliceFile(slice));
+        record.start();
+        boolean made = false;
+        try {
+            taskLogs.reset(taskLog);
+            if (slice.isWholeVideo()) {
+                // There's no need to slice, so the stored video is linked in as a placeholder for
+                // this "slice". No video data gets copied.
+                record.cache = RunMetrics.LINKED;
+                made = link(Paths.get(plan.storedSource(slice.url)), sliceFile, taskLog);
+                return made;
+            }
+
+            Path stored = Paths.get(plan.storedSlice(slice));
+            StepJournal journal = journals.get(plan);
+            checkJournal(journal, StepJournal.SLICE, stored, taskLog);
+            record.cache = RunMetrics.SHARED;
+            if (!once(stored, taskLog, () -> cutIntoStore(plan, slice, stored, taskLog, record))) {
+                return false;
+            }
+            if (RunMetrics.MISS.equals(record.cache)) {
+                journal.record(StepJournal.SLICE, stored.toString());
+            }
+            made = link(stored, sliceFile, taskLog);
+            return made;
+        } catch (IOException exception) {
+            appendLine(taskLog, exception.toString());
+            return false;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            record.finish(made);
+        }
+    }
+
+    // Links a repeated clip to the stored slice of the first clip it repeats, once that one has been
+    // made. If the first one couldn't be made, neither can the repeat.
+    private boolean linkRepeat(CommPlan plan, Slice slice, Slice first, boolean firstMade) {
+        RunMetrics.SliceCut record = metrics.slice(plan, slice);
+        File taskLog = new File(plan.sliceLog(slice));
+        record.start();
+        boolean made = false;
+        try {
+            taskLogs.reset(taskLog);
+            if (!firstMade) {
+                appendLine(taskLog, "Couldn't make " + first.filename() + ", which this slice repeats");
+                return false;
+            }
+            record.cache = RunMetrics.REPEAT;
+            appendLine(taskLog, "Repeats " + first.filename() + ", so it isn't cut again");
+            made = link(Paths.get(plan.storedSlice(first)), Paths.get(plan.sliceFile(slice)), taskLog);
+            return made;
+        } catch (IOException exception) {
+            appendLine(taskLog, exception.toString());
+            return false;
+        } finally {
+            record.finish(made);
+        }
+    }
+
+    // Checks a stored file against the journal of a run that's resuming. A file that doesn't have the
+    // size and digest it had when its step finished is removed, so it's downloaded or cut again.
+    private void checkJournal(StepJournal journal, String step, Path stored, File taskLog) throws IOException {
+        if (!journal.contains(step, stored.toString())) {
+            return;
+        }
+        if (journal.verify(step, stored.toString())) {
+            appendLine(taskLog, "Checked " + stored + " against the journal");
+        } else {
+            appendLine(taskLog, stored + " doesn't match the journal, so it's being made again");
+            deleteStored(stored);
+        }
+    }
+
+    // Starts the record of a slice once its source video is ready (or has failed). A slice whose
+    // source failed is recorded as failed, without a cache result, and is never cut.
+    private RunMetrics.SliceCut recordSlice(CommPlan plan, Slice slice, boolean downloaded) {
+        RunMetrics.SliceCut record = metrics.slice(plan, slice);
+        if (!downloaded || rejectedPlans.contains(plan)) {
+            record.finish(false);
+        } else {
+            record.cache = RunMetrics.SHARED;
+        }
+        return record;
+    }
+
+    // Cuts a slice into the slice store if it isn't there yet. Cuts are written to a partial file
+    // that's only moved into the store once the cut succeeds, so a failed or interrupted cut never
+    // leaves a broken slice behind to be reused.
+    private boolean cutIntoStore(CommPlan plan, Slice slice, Path stored, File taskLog, RunMetrics.SliceCut record)
+            throws IOException, InterruptedException {
+        if (isNonEmptyFile(stored)) {
+            appendLine(taskLog, "Reusing the stored slice " + stored);
+            record.cache = RunMetrics.HIT;
+            return true;
+        }
+        record.cache = RunMetrics.MISS;
+        Path partial = partialFile(stored);
+        try {
+            String source = plan.cachedSource(slice);
+            SourceProbe probe = probes.get(slice.sourceDigest());
+            List<String> command;
+            if (plan.normalize) {
+                // A normalized source has a keyframe at every whole second, so every slice is a copy
+                record.mode = "copy";
+                command = Commands.copySlice(source, String.valueOf(slice.start), slice, partial.toString());
+            } else if (plan.fastSlicing) {
+                command = fastSliceCommand(source, slice, partial.toString(), taskLog, probe, record);
+            } else if (probe != null && probe.keyframeBefore(slice.start) > 0) {
+                // The keyframe index says where decoding can start without changing a single frame
+                double keyframe = probe.keyframeBefore(slice.start);
+                record.mode = "indexed";
+                command = Commands.indexedSlice(source, SourceProbe.timestamp(keyframe),
+                        SourceProbe.timestamp(slice.start - keyframe), slice, partial.toString());
+            } else {
+                record.mode = "precise";
+                command = Commands.preciseSlice(source, slice, partial.toString());
+            }
+            long encodeStart = System.currentTimeMillis();
+            int exitCode = runEncode(command, taskLog);
+            record.encoded(System.currentTimeMillis() - encodeStart);
+            if (exitCode != 0) {
+                return false;
+            }
+            Files.move(partial, stored, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            madeThisRun.add(stored.toString());
+            return true;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    // Runs the task that puts a file in one of the stores, unless another CoMM is already running it.
+    // In that case this waits for it to finish and returns its result instead of doing the same work
+    // again.
+    private boolean once(Path stored, File taskLog, StoreTask task) throws IOException, InterruptedException {
+        CompletableFuture<Boolean> mine = new CompletableFuture<>();
+        CompletableFuture<Boolean> started = storeTasks.putIfAbsent(stored.toString(), mine);
+        if (started != null) {
+            appendLine(taskLog, "Another CoMM is already making " + stored);
+            try {
+                return started.get();
+            } catch (ExecutionException exception) {
+                return false;
+            }
+        }
+        boolean succeeded = false;
+        try {
+            succeeded = task.run();
+            return succeeded;
+        } finally {
+            storeTasks.remove(stored.toString(), mine);
+            mine.complete(succeeded);
+        }
+    }
+
+    // Something that puts a file in one of the stores, and returns `true` if it worked.
+    private interface StoreTask {
+        boolean run() throws IOException, InterruptedException;
+    }
+
+    // Returns the command that cuts a slice with an input-side seek, so ffmpeg jumps straight to the
+    // start time instead of decoding the video from the beginning. The keyframe index in the source's
+    // probe is used to look for a keyframe near the start time; without one, ffprobe reads the
+    // packets within a second of the start time (without decoding them). If a keyframe is close
+    // enough, the slice starts there and the packets are copied as they are; otherwise the slice is
+    // re-encoded, which is still exact because the seek is done first.
+    private List<String> fastSliceCommand(String source, Slice slice, String output, File taskLog, SourceProbe probe,
+                                          RunMetrics.SliceCut record) throws IOException, InterruptedException {
+        String keyframe = null;
+        double bestOffset = Double.MAX_VALUE;
+        List<String> packets = Collections.emptyList();
+        if (probe != null && probe.keyframeCount() > 0) {
+            double near = probe.keyframeNear(slice.start, keyframeTolerance);
+            keyframe = (near >= 0) ? SourceProbe.timestamp(near) : null;
+        } else {
+            packets = captureOutput(Commands.probePackets(source, slice.start), taskLog);
+        }
+        for (String packet : packets) {
+            String[] fields = packet.split(",");
+            if (fields.length < 2 || !fields[1].contains("K")) {
+                continue;
+            }
+            try {
+                double offset = Math.abs(Double.parseDouble(fields[0]) - slice.start);
+                if (offset <= keyframeTolerance && offset < bestOffset) {
+                    keyframe = fields[0];
+                    bestOffset = offset;
+                }
+            } catch (NumberFormatException ignored) {
+                // Packets without a timestamp show up as "N/A"
+            }
+        }
+        if (keyframe != null) {
+            appendLine(taskLog, "Keyframe at " + keyframe + ", copying the stream");
+            record.mode = "copy";
+            return Commands.copySlice(source, keyframe, slice, output);
+        }
+        appendLine(taskLog, "No keyframe near " + slice.start + ", re-encoding");
+        record.mode = "seek";
+        return Commands.seekSlice(source, slice, output);
+    }
+
+    // Joins the slices that exist into the final video. Slices that failed are left out, like
+    // anything else that's missing. In a single pass, the slices are read straight from the cached
+    // sources, and the slices of a failed download are left out.
+    private boolean joinSlices(CommPlan plan, PrintWriter out) throws IOException {
+        File cacheDir = new File(plan.location.cacheDir());
+        String outputPath = plan.location.cacheDir() + "/" + plan.outputName();
+        if (journals.get(plan).verify(StepJournal.JOIN, outputPath)) {
+            log(out, "Already joined " + outputPath + " (checked against the journal)");
+            metrics.comm(plan).joined(0, new File(outputPath).length());
+            return true;
+        }
+        File sliceList = new File(cacheDir, plan.sliceListName());
+        try (PrintWriter list = new PrintWriter(sliceList, "UTF-8")) {
+            for (Slice slice : plan.slices) {
+                if (plan.singlePass) {
+                    if (new File(cacheDir, plan.cachedSourceName(slice)).exists()) {
+                        list.print(plan.singlePassEntry(slice));
+                    }
+                } else if (new File(cacheDir, slice.filename()).exists()) {
+                    list.println("file '" + slice.filename() + "'");
+                }
+            }
+        }
+
+        File taskLog = new File(cacheDir, plan.location.filename + ".join.log");
+        taskLogs.reset(taskLog);
+        String videoFilter = videoFilter(plan, taskLog);
+        List<String> command;
+        if (plan.normalize && videoFilter == null) {
+            // The slices (or the in points and out points) all start on a keyframe of the same profile
+            command = Commands.copyConcat(plan.sliceListName(), plan.outputName());
+        } else if (plan.singlePass) {
+            command = Commands.singlePassConcat(plan.sliceListName(), videoFilter, plan.preview, plan.outputName());
+        } else {
+            command = Commands.concat(plan.sliceListName(), videoFilter, plan.preview, plan.outputName());
+        }
+        try {
+            long joinStart = System.currentTimeMillis();
+            boolean joined = runCommand(command, taskLog, cacheDir) == 0;
+            File output = new File(cacheDir, plan.outputName());
+            metrics.comm(plan).joined(System.currentTimeMillis() - joinStart, joined ? output.length() : 0);
+            copyIntoLog(out, taskLog);
+            return joined;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Returns the video filter that scales the plan's video (see FrameScale), or null if it isn't
+    // scaled. The frame is worked out from the probes of the sources, if it depends on them (or from
+    // the normalized profile, if the sources are normalized).
+    private String videoFilter(CommPlan plan, File taskLog) throws IOException {
+        FrameScale scale = plan.renderScale();
+        if (scale == null) {
+            return null;
+        }
+        List<int[]> sizes = new ArrayList<>();
+        if (scale.needsSourceSizes() && plan.normalize) {
+            sizes.add(new int[]{Commands.NORMALIZED_WIDTH, Commands.NORMALIZED_HEIGHT});
+        } else if (scale.needsSourceSizes()) {
+            for (String url : plan.downloadUrls) {
+                SourceProbe probe = probes.get(SourceStore.digest(url));
+                if (probe == null) {
+                    probe = SourceProbe.load(url);
+                }
+                if (probe != null) {
+                    sizes.add(new int[]{probe.width, probe.height});
+                }
+            }
+        }
+        int[] frame = scale.frame(sizes);
+        appendLine(taskLog, "Scaling to " + frame[0] + "x" + frame[1]);
+        return scale.filter(String.valueOf(frame[0]), String.valueOf(frame[1]));
+    }
+
+    // Links a stored file into a CoMM's cache. A hard link costs no extra disk space, and if the
+    // cache is on a different filesystem than the store, a symbolic link is used instead. Every link
+    // is recorded in the access log that CacheManager uses to find the least recently used files.
+    private boolean link(Path stored, Path link, File taskLog) throws IOException {
+        if (!Files.exists(stored)) {
+            appendLine(taskLog, stored + " doesn't exist");
+            return false;
+        }
+        recordAccess(stored);
+        Files.deleteIfExists(link);
+        try {
+            Files.createLink(link, stored);
+        } catch (IOException | UnsupportedOperationException exception) {
+            Files.createSymbolicLink(link, stored.toAbsolutePath().normalize());
+        }
+        return true;
+    }
+
+    // Appends a line for the stored file to the access log.
+    private static synchronized void recordAccess(Path stored) throws IOException {
+        String line = (System.currentTimeMillis() / 1000) + " " + stored + "\n";
+        Files.write(Paths.get(CacheManager.accessLog), line.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // Runs a command with everything it prints added to the task log, and returns its exit code.
+    private int runCommand(List<String> command, File taskLog, File workDir) throws IOException, InterruptedException {
+        appendLine(taskLog, timestamp() + " " + Commands.toShell(command));
+        appendLine(taskLog, "");
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .directory(workDir)
+                .redirectErrorStream(true);
+        long start = System.currentTimeMillis();
+        Process process = start(builder);
+        try {
+            taskLogs.pump(process.getInputStream(), taskLog, logTag(taskLog));
+        } catch (IOException exception) {
+            // Without anyone reading its output, the process stops when it next prints something
+            appendLine(taskLog, "Couldn't read the output: " + exception.getMessage());
+            process.getInputStream().close();
+        }
+        int exitCode = waitFor(process);
+        appendLine(taskLog, String.format("%nExited with %d after %.1fs%n", exitCode,
+                (System.currentTimeMillis() - start) / 1000.0));
+        return exitCode;
+    }
+
+    // Runs an encode on a render worker if there's a coordinator, and otherwise here, and returns its
+    // exit code. The command's last argument is the file it writes.
+    private int runEncode(List<String> command, File taskLog) throws IOException, InterruptedException {
+        if (coordinator == null) {
+            return runCommand(command, taskLog, null);
+        }
+        if (cancelled) {
+            throw new IOException("The run was cancelled");
+        }
+        appendLine(taskLog, timestamp() + " " + Commands.toShell(command));
+        appendLine(taskLog, "");
+        long start = System.currentTimeMillis();
+        Integer exitCode = coordinator.run(command, taskLogs, taskLog, logTag(taskLog));
+        if (exitCode == null) {
+            // A worker that was dropped part way through may have left some of the file behind
+            Files.deleteIfExists(Paths.get(command.get(command.size() - 1)));
+            return runCommand(command, taskLog, null);
+        }
+        appendLine(taskLog, String.format("%nExited with %d after %.1fs%n", exitCode,
+                (System.currentTimeMillis() - start) / 1000.0));
+        return exitCode;
+    }
+
+    // Runs a command and returns the lines it prints on stdout. Anything it prints on stderr goes
+    // to the task log.
+    private List<String> captureOutput(List<String> command, File taskLog) throws IOException, InterruptedException {
+        appendLine(taskLog, timestamp() + " " + Commands.toShell(command));
+        Process process = start(new ProcessBuilder(command));
+        Thread errors = new Thread(() -> {
+            try {
+                taskLogs.pump(process.getErrorStream(), taskLog, logTag(taskLog));
+            } catch (IOException ignored) {
+                // The process was killed
+            }
+        });
+        errors.start();
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line.trim());
+            }
+        }
+        waitFor(process);
+        errors.join();
+        return lines;
+    }
+
+    // Starts a process with nothing on its stdin, keeping track of it until it exits.
+    private Process start(ProcessBuilder builder) throws IOException {
+        if (cancelled) {
+            throw new IOException("The run was cancelled");
+        }
+        Process process = builder.start();
+        running.add(process);
+        process.getOutputStream().close();
+        return process;
+    }
+
+    private int waitFor(Process process) throws InterruptedException {
+        try {
+            return process.waitFor();
+        } finally {
+            running.remove(process);
+        }
+    }
+
+    // Returns the number of slices a CoMM can cut at once. Zero means one per processor core, or
+    // with render workers, as many as remoteSliceJobs (the workers' slots are the real limit then).
+    private int sliceJobLimit(CommPlan plan) {
+        if (plan.sliceJobs > 0) {
+            return plan.sliceJobs;
+        }
+        return (coordinator != null) ? remoteSliceJobs : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static double keyframeTolerance() {
+        String tolerance = System.getenv("COMM_KEYFRAME_TOLERANCE");
+        try {
+            return (tolerance != null) ? Double.parseDouble(tolerance) : defaultKeyframeTolerance;
+        } catch (NumberFormatException exception) {
+            return defaultKeyframeTolerance;
+        }
+    }
+
+    // Returns a partial file to write a stored .mkv file to. The name is random, so two cuts (in this
+    // run, or in another process sharing the stores) never write to the same file, and one left behind
+    // by a run that was killed is never handed out again.
+    private static Path partialFile(Path stored) {
+        String name = stored.toString();
+        return Paths.get(name.substring(0, name.length() - ".mkv".length()) + ".partial-" + UUID.randomUUID()
+                + ".mkv");
+    }
+
+    private static boolean isNonEmptyFile(Path file) throws IOException {
+        return Files.isRegularFile(file) && Files.size(file) > 0;
+    }
+
+    // Logs anything listed in `failures`, and lists them in failed_<description>.txt in the cache.
+    private void reportFailures(CommPlan plan, PrintWriter out, List<String> failures, String description)
+            throws IOException {
+        Path failureList = Paths.get(plan.location.cacheDir(), "failed_" + description + ".txt");
+        if (failures.isEmpty()) {
+            Files.deleteIfExists(failureList);
+            return;
+        }
+        Files.write(failureList, failures, StandardCharsets.UTF_8);
+        log(out, "[!] These " + description + " failed:");
+        for (String failure : failures) {
+            log(out, "    " + failure);
+        }
+    }
+
+    // Copies a task log into a CoMM's part of the run log, once everything the task logged has been
+    // written, starting with the part it was rotated to (if it got that big). Tasks that never ran
+    // (like the slices of a failed download) don't have a log.
+    private void copyIntoLog(PrintWriter out, File taskLog) throws IOException {
+        taskLogs.flush(taskLog);
+        for (File log : new File[]{TaskLogs.rotated(taskLog), taskLog}) {
+            if (log.exists()) {
+                for (String line : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8)) {
+                    out.println(line);
+                }
+            }
+        }
+    }
+
+    private static void log(PrintWriter out, String message) {
+        out.println(message.isEmpty() ? "" : timestamp() + " " + message);
+    }
+
+    // Adds a line to a task log. It's written in the background (see TaskLogs).
+    private void appendLine(File taskLog, String line) {
+        taskLogs.append(taskLog, line);
+    }
+
+    // The name a task's lines are tagged with: its log's name, with any digest in it cut short.
+    private static String logTag(File taskLog) {
+        return taskLog.getName().replaceFirst("\\.log$", "")
+                .replaceAll("(\\p{XDigit}{12})\\p{XDigit}{52}(?!\\p{XDigit})", "$1");
+    }
+
+    private static String timestamp() {
+        return new SimpleDateFormat("[yyyy-MM-dd HH:mm:ss.SSS]").format(new Date());
+    }
+
+    // Deletes a directory and everything in it, without following symbolic links. The run log is
+    // kept (along with the directory holding it), since it's still being written.
+    private void deleteRecursively(Path path) throws IOException {
+        Path logPath = runLog.toPath().toAbsolutePath().normalize();
+        Path absolute = path.toAbsolutePath().normalize();
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+                for (Path child : children) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        if (!logPath.startsWith(absolute)) {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package interpreter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Writes the TaskEngine's task logs (one per download, slice and join) on a background thread.
+ * Tasks hand their lines over through a bounded queue instead of appending to the files themselves,
+ * so a task never waits on the disk unless it gets far ahead of it, and the output of the programs
+ * a task runs is read in-process, with a timestamp and the task's name on every line.
+ *
+ * ffmpeg and youtube-dl print a progress line many times a second, which on a long render makes
+ * up almost all of their output. Those lines are sampled: one is kept every COMM_LOG_PROGRESS
+ * seconds (10 by default; 0 keeps none), and the last one is always kept. A task log that still
+ * gets bigger than maxLogBytes is rotated to <log>.1, so no task's log takes up more than twice
+ * that on disk however long it runs.
+ *
+ * Ex:
+ * [2024-03-02 14:05:11.204] slice0003 | frame=  412 fps=118 q=28.0 size=    1024kB time=00:00:13.73 ...
+ */
+class TaskLogs implements Closeable {
+    /**
+     * How big a task log gets before it's rotated.
+     */
+    static final long maxLogBytes = 2L << 20;
+
+    // How many lines can be waiting to be written. A task that gets this far ahead of the disk waits
+    // for it, which in turn holds back the program it's reading the output of.
+    private static final int queueCapacity = 4096;
+
+    // Longer lines are cut short, so one runaway line can't blow up the queue
+    private static final int maxLineLength = 4096;
+
+    // How many task logs are kept open at once. The least recently written one is closed first.
+    private static final int maxOpenLogs = 32;
+
+    private static final long defaultProgressMillis = 10_000;
+
+    private static final DateTimeFormatter TIMESTAMP =
+            DateTimeFormatter.ofPattern("'['yyyy-MM-dd HH:mm:ss.SSS']'").withZone(ZoneId.systemDefault());
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(queueCapacity);
+    private final long progressMillis = progressMillis();
+    private final Thread writer = new Thread(this::writeEntries, "comm-task-logs");
+
+    // The open task logs, in the order they were last written. Only the writer thread uses them.
+    private final LinkedHashMap<File, OpenLog> openLogs = new LinkedHashMap<File, OpenLog>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, OpenLog> eldest) {
+            if (size() > maxOpenLogs) {
+                eldest.getValue().closeQuietly();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // Whether a task log couldn't be written, so it's only reported once
+    private boolean writeFailed = false;
+
+    TaskLogs() {
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the file a task log is rotated to.
+     */
+    static File rotated(File log) {
+        return new File(log.getPath() + ".1");
+    }
+
+    /**
+     * Adds a line to the end of a task log, as it is.
+     */
+    void append(File log, String line) {
+        enqueue(new Entry(Entry.LINE, log, 0, null, line));
+    }
+
+    /**
+     * Deletes a task log (and the file it was rotated to), once everything before it is written.
+     */
+    void reset(File log) {
+        enqueue(new Entry(Entry.RESET, log, 0, null, null));
+    }
+
+    /**
+     * Waits until every line added to the task log so far has been written, so the file can be read.
+     */
+    void flush(File log) throws InterruptedIOException {
+        Entry flush = new Entry(Entry.FLUSH, log, 0, null, null);
+        enqueue(flush);
+        try {
+            flush.done.await();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing " + log);
+        }
+    }
+
+    /**
+     * Reads the output of a program until it ends, adding each line to the task log with a timestamp
+     * and the tag. Carriage returns end a line too, since that's how ffmpeg and youtube-dl redraw
+     * their progress. Progress lines are sampled (see above).
+     */
+    void pump(InputStream output, File log, String tag) throws IOException {
+        Output sampler = output(log, tag);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(output, StandardCharsets.UTF_8))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                sampler.line(line);
+            }
+        }
+        sampler.end();
+    }
+
+    /**
+     * Returns an Output that adds a program's output to the task log a line at a time, for output
+     * that doesn't come from a stream this process can read (like a render worker's).
+     */
+    Output output(File log, String tag) {
+        return new Output(log, tag);
+    }
+
+    /**
+     * The output of one run of a program, going into a task log with its progress lines sampled.
+     * It's only used by one thread at a time.
+     */
+    class Output {
+        private final File log;
+        private final String tag;
+        private long lastKept = 0;
+
+        // The latest progress line that hasn't been kept (yet), and how many have been left out
+        private String skipped = null;
+        private long skippedTime = 0;
+        private int skippedCount = 0;
+
+        private Output(File log, String tag) {
+            this.log = log;
+            this.tag = tag;
+        }
+
+        /**
+         * Adds a line of the program's output.
+         */
+        void line(String line) {
+            if (line.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (!isProgress(line)) {
+                if (skipped != null) {
+                    // The progress the program had made when it printed the line
+                    keepSkipped();
+                }
+                enqueue(new Entry(Entry.LINE, log, now, tag, line));
+            } else if (progressMillis > 0 && now - lastKept >= progressMillis) {
+                enqueue(new Entry(Entry.LINE, log, now, tag, line));
+                lastKept = now;
+                skipped = null;
+            } else {
+                skipped = line;
+                skippedTime = now;
+                skippedCount++;
+            }
+        }
+
+        /**
+         * Finishes the program's output. The Output can be used again for another run of it.
+         */
+        void end() {
+            if (skipped != null) {
+                // The last progress line says how far the program got
+                keepSkipped();
+            }
+            if (skippedCount > 0) {
+                append(log, "(" + skippedCount + " progress lines left out)");
+            }
+            lastKept = 0;
+            skippedCount = 0;
+        }
+
+        private void keepSkipped() {
+            enqueue(new Entry(Entry.LINE, log, skippedTime, tag, skipped));
+            skipped = null;
+            skippedCount--;
+        }
+    }
+
+    /**
+     * Writes everything that's still waiting and stops the writer thread.
+     */
+    @Override
+    public void close() throws InterruptedIOException {
+        enqueue(new Entry(Entry.STOP, null, 0, null, null));
+        try {
+            writer.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the task logs");
+        }
+    }
+
+    // Whether a line is one of the progress lines ffmpeg ("frame= ... time=", or "size= ... time="
+    // without video) and youtube-dl ("[download]  42.0% of 10.00MiB ...") keep printing.
+    private static boolean isProgress(String line) {
+        if (line.startsWith("frame=") || line.startsWith("size=")) {
+            return line.contains("time=");
+        }
+        return line.startsWith("[download]") && line.contains("%");
+    }
+
+    // Waits for room in the queue. A task that's been interrupted (because the run is being
+    // cancelled) doesn't wait, and its line is dropped if there isn't any.
+    private void enqueue(Entry entry) {
+        try {
+            queue.put(entry);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            if (!queue.offer(entry) && entry.done != null) {
+                entry.done.countDown();
+            }
+        }
+    }
+
+    // Takes entries off the queue until it's closed. The open logs are flushed whenever the queue
+    // runs dry, so a task log is never far behind while the run is quiet.
+    private void writeEntries() {
+        try {
+            while (true) {
+                Entry entry = queue.poll();
+                if (entry == null) {
+                    flushOpenLogs();
+                    entry = queue.take();
+                }
+                if (entry.kind == Entry.STOP) {
+                    return;
+                }
+                write(entry);
+            }
+        } catch (InterruptedException ignored) {
+            // Only a daemon thread that the JVM is stopping gets here
+        } finally {
+            for (OpenLog open : openLogs.values()) {
+                open.closeQuietly();
+            }
+            openLogs.clear();
+        }
+    }
+
+    private void write(Entry entry) {
+        try {
+            if (entry.kind == Entry.LINE) {
+                writeLine(entry);
+            } else {
+                OpenLog open = openLogs.remove(entry.log);
+                if (open != null) {
+                    open.close();
+                }
+                if (entry.kind == Entry.RESET) {
+                    Files.deleteIfExists(entry.log.toPath());
+                    Files.deleteIfExists(rotated(entry.log).toPath());
+                }
+            }
+        } catch (IOException exception) {
+            if (!writeFailed) {
+                writeFailed = true;
+                System.err.println("[!] Couldn't write the task log " + entry.log + ": " + exception.getMessage());
+            }
+        } finally {
+            if (entry.done != null) {
+                entry.done.countDown();
+            }
+        }
+    }
+
+    private void writeLine(Entry entry) throws IOException {
+        String text = (entry.text.length() > maxLineLength)
+                ? entry.text.substring(0, maxLineLength) + " ..."
+                : entry.text;
+        if (entry.tag != null) {
+            text = TIMESTAMP.format(Instant.ofEpochMilli(entry.time)) + " " + entry.tag + " | " + text;
+        }
+        byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        OpenLog open = openLogs.get(entry.log);
+        if (open == null) {
+            open = new OpenLog(entry.log);
+            openLogs.put(entry.log, open);
+        }
+        if (open.size > 0 && open.size + bytes.length > maxLogBytes) {
+            open.close();
+            Files.move(entry.log.toPath(), rotated(entry.log).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            open = new OpenLog(entry.log);
+            openLogs.put(entry.log, open);
+        }
+        open.out.write(bytes);
+        open.size += bytes.length;
+    }
+
+    private void flushOpenLogs() {
+        Iterator<Map.Entry<File, OpenLog>> logs = openLogs.entrySet().iterator();
+        while (logs.hasNext()) {
+            Map.Entry<File, OpenLog> log = logs.next();
+            try {
+                log.getValue().out.flush();
+            } catch (IOException exception) {
+                log.getValue().closeQuietly();
+                logs.remove();
+            }
+        }
+    }
+
+    private static long progressMillis() {
+        String seconds = System.getenv("COMM_LOG_PROGRESS");
+        try {
+            return (seconds != null) ? Math.max((long) (Double.parseDouble(seconds) * 1000), 0) : defaultProgressMillis;
+        } catch (NumberFormatException exception) {
+            return defaultProgressMillis;
+        }
+    }
+
+    // Something for the writer thread to do with a task log.
+    private static class Entry {
+        static final int LINE = 0;
+        static final int RESET = 1;
+        static final int FLUSH = 2;
+        static final int STOP = 3;
+
+        final int kind;
+        final File log;
+        final long time;
+        final String tag;
+        final String text;
+
+        // Counted down once a flush has been done
+        final CountDownLatch done;
+
+        Entry(int kind, File log, long time, String tag, String text) {
+            this.kind = kind;
+            this.log = log;
+            this.time = time;
+            this.tag = tag;
+            this.text = text;
+            this.done = (kind == FLUSH) ? new CountDownLatch(1) : null;
+        }
+    }
+
+    // A task log that's open for appending, and how big it is.
+    private static class OpenLog {
+        final OutputStream out;
+        long size;
+
+        OpenLog(File log) throws IOException {
+            this.size = log.length();
+            this.out = new BufferedOutputStream(new FileOutputStream(log, true), 1 << 16);
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+
+        void closeQuietly() {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
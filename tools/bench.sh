@@ -0,0 +1,60 @@
+#!/usr/bin/env bash
+
+# This script builds and runs the JMH benchmarks in src/jmh/java, which measure how fast CoMM
+# programs are lexed, parsed and translated, and how much memory each stage allocates.
+#
+# It should be run from the project's root directory like so:
+#     tools/bench.sh                       # every benchmark, with the gc profiler
+#     tools/bench.sh parse -p comms=1      # any arguments are passed on to JMH
+#
+# The JMH jars are downloaded from Maven Central into lib/jmh the first time it runs. To use jars
+# you already have instead, put them in lib/jmh yourself.
+
+
+if [[ `basename $(pwd)` != "codable_media_mashup" ]]; then
+    echo "ERROR: Current directory isn't 'codable_media_mashup'."
+    echo "  Please run this tool from the project's root directory."
+    exit
+fi
+
+set -e
+
+C_YEL="\033[01;33m"
+C_NRM="\033[00m"
+
+JMH_VERSION=1.37
+MAVEN=https://repo1.maven.org/maven2
+JMH_JARS=(
+    "org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar"
+    "org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar"
+    "net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar"
+    "org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar"
+)
+
+mkdir -p lib/jmh
+for JAR in "${JMH_JARS[@]}"; do
+    if [[ ! -f lib/jmh/$(basename $JAR) ]]; then
+        echo -e "${C_YEL}curl $MAVEN/$JAR${C_NRM}"
+        curl -sSfL -o lib/jmh/$(basename $JAR) $MAVEN/$JAR
+    fi
+done
+CLASSPATH="src/main/resources/antlr-4.5.3-complete.jar:$(ls lib/jmh/*.jar | tr '\n' ':')"
+
+rm -rf build/jmh
+mkdir -p build/jmh/classes build/jmh/generated
+
+echo -e "${C_YEL}antlr4 src/main/java/comm_grammar/comm_grammar.g4${C_NRM}     (abbreviated)"
+java -Xmx500M -cp "src/main/resources/antlr-4.5.3-complete.jar" org.antlr.v4.Tool src/main/java/comm_grammar/comm_grammar.g4
+
+echo -e "${C_YEL}javac src/main/java/*.java src/jmh/java/*.java${C_NRM}     (abbreviated)"
+javac -cp "$CLASSPATH" -d build/jmh/classes -s build/jmh/generated \
+    src/main/java/interpreter/*.java          \
+    src/main/java/comm_grammar/*.java         \
+    src/main/java/utils/*.java                \
+    src/jmh/java/interpreter/*.java
+
+if [[ $# -eq 0 ]]; then
+    set -- -prof gc
+fi
+echo -e "${C_YEL}java org.openjdk.jmh.Main $@${C_NRM}"
+java -cp "build/jmh/classes:$CLASSPATH" org.openjdk.jmh.Main "$@"
@@ -0,0 +1,58 @@
+#!/usr/bin/env bash
+
+# A stand-in for youtube-dl that doesn't touch the network. It sleeps for a bit and
+# then writes a small placeholder file where youtube-dl would have put the video, so
+# the download stage of a CoMM script can be tried out (and timed) locally.
+#
+# Put it on the PATH under the name "youtube-dl" before running a CoMM:
+#     mkdir -p /tmp/fake_bin
+#     ln -sf "$(pwd)/tools/fake_youtube_dl.sh" /tmp/fake_bin/youtube-dl
+#     PATH="/tmp/fake_bin:$PATH" java -jar Comm.jar -j 4 examples/simple_example.comm
+#
+# Environment variables:
+#     FAKE_YTDL_SLEEP   Seconds to sleep for each download (default 2)
+#     FAKE_YTDL_FAIL    Any url containing this text fails instead of downloading
+
+OUTPUT=""
+URL=""
+EXT="mkv"
+
+while [[ $# -gt 0 ]]; do
+    case "$1" in
+        --output)
+            OUTPUT="$2"
+            shift
+            ;;
+        --recode-video)
+            EXT="$2"
+            shift
+            ;;
+        -*)
+            ;;
+        *)
+            URL="$1"
+            ;;
+    esac
+    shift
+done
+
+if [[ -z "$OUTPUT" || -z "$URL" ]]; then
+    echo "ERROR: fake youtube-dl needs --output and a url"
+    exit 2
+fi
+
+echo "[fake youtube-dl] Downloading $URL"
+sleep "${FAKE_YTDL_SLEEP:-2}"
+
+if [[ -n "$FAKE_YTDL_FAIL" && "$URL" == *"$FAKE_YTDL_FAIL"* ]]; then
+    echo "ERROR: fake download of $URL failed"
+    exit 1
+fi
+
+if [[ -e "$OUTPUT.$EXT" ]]; then
+    echo "[fake youtube-dl] $OUTPUT.$EXT has already been downloaded"
+    exit 0
+fi
+
+echo "fake video for $URL" > "$OUTPUT.$EXT"
+echo "[fake youtube-dl] Saved $OUTPUT.$EXT"